@@ -0,0 +1,101 @@
+import benchmarks.HandoffWorkload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HandoffWorkload of the ChunkHandoffBenchmark. The queue and the ring hold the same 16 MB of chunks.
+ *
+ * The ring returns the byte budget of every drained batch, so the queue path keeps the same count of
+ * bytes in flight and returns it per batch too, and both pay the release bookkeeping of a FileWriter.
+ */
+public class ChunkHandoffFixture implements HandoffWorkload {
+    private static final int QUEUE_SIZE = 4096;
+    private boolean useRing;
+    private int producers;
+    private ExecutorService producerExecutor;
+    private Chunk[] chunks;
+    private BlockingQueue<Chunk> chunkQueue;
+    private AtomicLong queuedBytes;
+    private ChunkRing chunkRing;
+    private List<Chunk> batch;
+
+    @Override
+    public void prepare(boolean chunkRing, int producers, int numberOfChunks) {
+        this.useRing = chunkRing;
+        this.producers = producers;
+        this.producerExecutor = Executors.newFixedThreadPool(producers);
+        this.chunks = new Chunk[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            chunks[i] = new Chunk(new byte[HTTPRangeGetter.CHUNK_SIZE], (long) i * HTTPRangeGetter.CHUNK_SIZE,
+                    HTTPRangeGetter.CHUNK_SIZE);
+        }
+        this.chunkQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.queuedBytes = new AtomicLong();
+        this.chunkRing = new ChunkRing((long) QUEUE_SIZE * HTTPRangeGetter.CHUNK_SIZE, HTTPRangeGetter.CHUNK_SIZE);
+        this.batch = new ArrayList<>(FileWriter.MAX_BATCH_SIZE);
+    }
+
+    @Override
+    public int handoff() throws InterruptedException {
+        int chunksPerProducer = chunks.length / producers;
+        for (int p = 0; p < producers; p++) {
+            int first = p * chunksPerProducer;
+            producerExecutor.execute(() -> produce(first, first + chunksPerProducer));
+        }
+
+        // Drain in batches, like a FileWriter
+        int received = 0;
+        while (received < chunksPerProducer * producers) {
+            batch.clear();
+            if (useRing) {
+                chunkRing.drainTo(batch, FileWriter.MAX_BATCH_SIZE, TimeUnit.SECONDS.toNanos(1));
+                chunkRing.release(batch);
+            } else {
+                Chunk firstChunk = chunkQueue.poll(1, TimeUnit.SECONDS);
+                if (firstChunk != null) {
+                    batch.add(firstChunk);
+                    chunkQueue.drainTo(batch, FileWriter.MAX_BATCH_SIZE - 1);
+                }
+                release(batch);
+            }
+            received += batch.size();
+        }
+        return received;
+    }
+
+    @Override
+    public void close() {
+        producerExecutor.shutdownNow();
+    }
+
+    // The queue path counterpart of ChunkRing.release
+    private void release(List<Chunk> drained) {
+        long bytes = 0;
+        for (Chunk chunk : drained) {
+            bytes += chunk.getCapacity();
+        }
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    private void produce(int first, int end) {
+        try {
+            for (int i = first; i < end; i++) {
+                if (useRing) {
+                    chunkRing.put(chunks[i]);
+                } else {
+                    queuedBytes.addAndGet(chunks[i].getCapacity());
+                    chunkQueue.put(chunks[i]);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import benchmarks.DownloadWorkload;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The DownloadWorkload of the LoadHarness. The metadata is written the way StripedWriters writes its snapshots.
+ */
+public class DownloadFixture implements DownloadWorkload {
+
+    @Override
+    public void download(String[] args) throws InterruptedException {
+        IdcDm.main(args);
+    }
+
+    @Override
+    public String writeMetadata(File directory, String url, String eTag, long fileSize, long[] starts, long[] ends)
+            throws IOException {
+        DownloadableMetadata downloadableMetadata = new DownloadableMetadata(url);
+        downloadableMetadata.setETag(eTag);
+        downloadableMetadata.setFileSize(fileSize);
+        for (int i = 0; i < starts.length; i++) {
+            downloadableMetadata.addRange(new Range(starts[i], ends[i]));
+        }
+
+        File metadataFile = new File(directory, downloadableMetadata.getMetadataFilename());
+        MetadataFormat.write(downloadableMetadata, metadataFile, false);
+        return downloadableMetadata.getFilename();
+    }
+}
@@ -0,0 +1,46 @@
+import benchmarks.RangeWorkload;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * The RangeWorkload of the RangeBenchmark.
+ */
+public class RangeFixture implements RangeWorkload {
+    private Range[] ranges;
+
+    @Override
+    public void prepare(boolean shuffled, int numberOfRanges) {
+        ranges = new Range[numberOfRanges];
+        for (int i = 0; i < numberOfRanges; i++) {
+            long start = (long) i * HTTPRangeGetter.CHUNK_SIZE;
+            ranges[i] = new Range(start, start + HTTPRangeGetter.CHUNK_SIZE);
+        }
+
+        if (shuffled) {
+            Random random = new Random(42);
+            for (int i = numberOfRanges - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                Range range = ranges[i];
+                ranges[i] = ranges[j];
+                ranges[j] = range;
+            }
+        }
+    }
+
+    @Override
+    public void unionRanges(Blackhole blackhole) {
+        for (int i = 1; i < ranges.length; i++) {
+            blackhole.consume(Range.unionRanges(ranges[i - 1], ranges[i]));
+        }
+    }
+
+    @Override
+    public Object addRanges() {
+        DownloadableMetadata downloadableMetadata = new DownloadableMetadata("http://localhost/file.bin");
+        for (Range range : ranges) {
+            downloadableMetadata.addRange(range);
+        }
+        return downloadableMetadata;
+    }
+}
@@ -0,0 +1,15 @@
+import benchmarks.TokenBucketWorkload;
+
+/**
+ * The TokenBucketWorkload of the TokenBucketBenchmark, a bucket which never makes a taker park.
+ */
+public class TokenBucketFixture implements TokenBucketWorkload {
+    private static final long BYTES_PER_SECOND = 1_000_000_000_000_000L;
+    private static final long BURST_SIZE = 1L << 40;
+    private final TokenBucket tokenBucket = new TokenBucket(BYTES_PER_SECOND, BURST_SIZE);
+
+    @Override
+    public void take(long tokens) throws InterruptedException {
+        tokenBucket.take(tokens);
+    }
+}
@@ -0,0 +1,70 @@
+import benchmarks.WriteWorkload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The WriteWorkload of the WriteStrategyBenchmark, stripes written round a 64 MB temp file.
+ */
+public class WriteStrategyFixture implements WriteWorkload {
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+    private static final int CHUNKS_PER_STRIPE = (int) (StripedWriters.STRIPE_SIZE / HTTPRangeGetter.CHUNK_SIZE);
+    private File file;
+    private DownloadOutput output;
+    private int runLength;
+    private boolean force;
+    private Chunk[] chunks;
+    private List<Chunk> run;
+    private long position;
+
+    @Override
+    public void prepare(String outputMode, int runLength, boolean force) throws IOException {
+        this.file = File.createTempFile("idcdm-benchmark", ".tmp");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(FILE_SIZE);
+        }
+        this.output = FileWriter.OutputMode.valueOf(outputMode) == FileWriter.OutputMode.MAPPED
+                ? new MappedOutput(file, FILE_SIZE) : new ChannelOutput(file);
+        this.runLength = runLength;
+        this.force = force;
+
+        this.chunks = new Chunk[CHUNKS_PER_STRIPE];
+        for (int i = 0; i < CHUNKS_PER_STRIPE; i++) {
+            byte[] data = new byte[HTTPRangeGetter.CHUNK_SIZE];
+            data[0] = (byte) i;
+            chunks[i] = new Chunk(data, 0, HTTPRangeGetter.CHUNK_SIZE);
+        }
+        this.run = new ArrayList<>(runLength);
+        this.position = 0;
+    }
+
+    @Override
+    public long writeStripe() throws IOException {
+        long writtenBytes = 0;
+        for (int i = 0; i < CHUNKS_PER_STRIPE; i += runLength) {
+            run.clear();
+            for (int j = i; j < Math.min(i + runLength, CHUNKS_PER_STRIPE); j++) {
+                chunks[j].set(position + (long) j * HTTPRangeGetter.CHUNK_SIZE, HTTPRangeGetter.CHUNK_SIZE);
+                run.add(chunks[j]);
+            }
+            writtenBytes += output.write(run);
+        }
+
+        if (force) {
+            output.force();
+        }
+        position = (position + StripedWriters.STRIPE_SIZE) % FILE_SIZE;
+        return writtenBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
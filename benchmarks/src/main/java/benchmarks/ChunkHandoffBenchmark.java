@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing chunks from the getters to a writer, through an ArrayBlockingQueue (the old writer queue)
+ * or a ChunkRing, at different numbers of producers.
+ *
+ * Every operation moves CHUNKS chunks to the benchmark thread, which drains them in batches
+ * the way a FileWriter does. The score is per chunk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkHandoffBenchmark {
+    private static final int CHUNKS = 64 * 1024;
+
+    @Param({"ARRAY_BLOCKING_QUEUE", "CHUNK_RING"})
+    public String handoff;
+
+    @Param({"1", "4", "16"})
+    public int producers;
+
+    private HandoffWorkload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        workload = Workloads.create("ChunkHandoffFixture", HandoffWorkload.class);
+        workload.prepare(handoff.equals("CHUNK_RING"), producers, CHUNKS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNKS)
+    public int handoff() throws InterruptedException {
+        return workload.handoff();
+    }
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import com.sun.management.OperatingSystemMXBean;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a single IdcDm download in its own JVM for the LoadHarness, with the IdcDm command-line as arguments,
+ * and prints what the download cost as a single line starting with METRICS_PREFIX on the standard output.
+ *
+ * The CPU time is the time of the whole process, the JIT and the garbage collector included.
+ * The allocated bytes are the growth of the heap plus everything the collections freed meanwhile.
+ */
+public final class DownloadRunner {
+    static final String METRICS_PREFIX = "HARNESS-METRICS";
+
+    private DownloadRunner() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        DownloadWorkload workload = Workloads.create("DownloadFixture", DownloadWorkload.class);
+        OperatingSystemMXBean operatingSystem = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        CollectedBytes collectedBytes = new CollectedBytes();
+
+        long heapUsedAtStart = memory.getHeapMemoryUsage().getUsed();
+        long cpuAtStart = operatingSystem.getProcessCpuTime();
+        long startTime = System.nanoTime();
+        workload.download(args);
+        long wallNanos = System.nanoTime() - startTime;
+        long cpuNanos = operatingSystem.getProcessCpuTime() - cpuAtStart;
+        long allocatedBytes = memory.getHeapMemoryUsage().getUsed() - heapUsedAtStart + collectedBytes.get();
+
+        System.out.println(METRICS_PREFIX
+                + " wallNanos=" + wallNanos
+                + " cpuNanos=" + cpuNanos
+                + " allocatedBytes=" + Math.max(0, allocatedBytes)
+                + " collections=" + collectedBytes.getCollections());
+    }
+
+    /**
+     * The bytes freed by all the garbage collections since it was created.
+     */
+    private static final class CollectedBytes implements NotificationListener {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong collections = new AtomicLong();
+
+        CollectedBytes() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+
+        long get() {
+            return bytes.get();
+        }
+
+        long getCollections() {
+            return collections.get();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+
+            GcInfo gcInfo = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                    .getGcInfo();
+            long freed = 0;
+            for (String pool : gcInfo.getMemoryUsageBeforeGc().keySet()) {
+                MemoryUsage before = gcInfo.getMemoryUsageBeforeGc().get(pool);
+                MemoryUsage after = gcInfo.getMemoryUsageAfterGc().get(pool);
+                if (after != null && before.getUsed() > after.getUsed()) {
+                    freed += before.getUsed() - after.getUsed();
+                }
+            }
+            bytes.addAndGet(freed);
+            collections.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A whole download of IdcDm, implemented by DownloadFixture. Used by the LoadHarness rather than by JMH.
+ */
+public interface DownloadWorkload {
+
+    // Run IdcDm with the given command-line, in the working directory of this JVM
+    void download(String[] args) throws InterruptedException;
+
+    // Write the metadata of the url into the directory, as if the ranges [starts[i], ends[i]) of a file of
+    // fileSize bytes were downloaded. Returns the name of the file the ranges belong to
+    String writeMetadata(File directory, String url, String eTag, long fileSize, long[] starts, long[] ends)
+            throws IOException;
+}
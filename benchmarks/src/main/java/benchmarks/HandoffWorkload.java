@@ -0,0 +1,14 @@
+package benchmarks;
+
+/**
+ * Chunks handed from producer threads to a single consumer, implemented by ChunkHandoffFixture.
+ */
+public interface HandoffWorkload {
+
+    void prepare(boolean chunkRing, int producers, int chunks);
+
+    // Move all the chunks from the producers to the calling thread, returns the number of received chunks
+    int handoff() throws InterruptedException;
+
+    void close();
+}
@@ -0,0 +1,264 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end load test of IdcDm against a local ShapingHttpServer, without any network access.
+ *
+ * Every scenario starts a server for a new SyntheticFile, downloads it with a DownloadRunner in a new JVM and
+ * a new working directory, and verifies every byte of the downloaded file. The report has the wall-clock time,
+ * throughput, CPU and allocation rate of every scenario, and the harness exits with 1 when any download
+ * failed, so it can run as a regression check of the download path.
+ *
+ * usage: java -cp target/benchmarks.jar benchmarks.LoadHarness [quick|full] [SCENARIO-NAME-PART]
+ *
+ * The quick suite downloads small files and takes about a minute. The full suite adds files of
+ * harness.largeFileMB MB (2048 by default). JVM options of the downloads are given in harness.jvmArgs,
+ * for example -Dharness.jvmArgs="-Xmx256m -Didcdm.engine=ASYNC".
+ */
+public final class LoadHarness {
+    private static final long MB = 1024 * 1024;
+    private static final long SMALL_FILE_SIZE = 64 * MB;
+    private static final long DEFAULT_LARGE_FILE_MB = 2048;
+    private static final long DEFAULT_TIMEOUT_SECONDS = 600;
+    private static final ShapingHttpServer.Shaping WAN =
+            new ShapingHttpServer.Shaping(32 * MB, 2, 0, 0, 0);
+    private static final ShapingHttpServer.Shaping FLAKY =
+            new ShapingHttpServer.Shaping(16 * MB, 20, 0.05, 0.05, 1000);
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String suite = args.length > 0 ? args[0] : "quick";
+        String nameFilter = args.length > 1 ? args[1] : "";
+        List<Scenario> scenarios = new ArrayList<>(quickSuite());
+        if (suite.equals("full")) {
+            scenarios.addAll(largeSuite(Long.getLong("harness.largeFileMB", DEFAULT_LARGE_FILE_MB) * MB));
+        } else if (!suite.equals("quick")) {
+            System.err.println("usage: java -cp benchmarks.jar benchmarks.LoadHarness [quick|full] [SCENARIO-NAME-PART]");
+            System.exit(2);
+        }
+
+        System.out.printf("%-22s %6s %9s %8s %8s %8s %6s %9s %9s %5s %8s %6s %6s  %s%n",
+                "scenario", "conns", "size MB", "wall s", "MB/s", "cpu s", "cpu %",
+                "alloc MB", "alloc/s", "gcs", "requests", "resets", "stalls", "result");
+        int failures = 0;
+        for (Scenario scenario : scenarios) {
+            if (!scenario.name.contains(nameFilter)) {
+                continue;
+            }
+
+            Result result = run(scenario);
+            System.out.printf("%-22s %6d %9d %8.2f %8.1f %8.2f %6.0f %9.0f %9.0f %5d %8d %6d %6d  %s%n",
+                    scenario.name, scenario.connections, scenario.fileSize / MB,
+                    result.wallNanos / 1e9, result.downloadedBytes / (double) MB / (result.wallNanos / 1e9),
+                    result.cpuNanos / 1e9, 100.0 * result.cpuNanos / result.wallNanos,
+                    result.allocatedBytes / (double) MB, result.allocatedBytes / (double) MB / (result.wallNanos / 1e9),
+                    result.collections, result.requests, result.resets, result.stalls, result.status);
+            if (!result.isSuccessful()) {
+                failures++;
+            }
+        }
+
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static List<Scenario> quickSuite() {
+        return Arrays.asList(
+                new Scenario("1 connection", SMALL_FILE_SIZE, 1, WAN, 0),
+                new Scenario("4 connections", SMALL_FILE_SIZE, 4, WAN, 0),
+                new Scenario("16 connections", SMALL_FILE_SIZE, 16, WAN, 0),
+                new Scenario("64 connections", SMALL_FILE_SIZE, 64, WAN, 0),
+                new Scenario("resets and stalls", SMALL_FILE_SIZE, 16, FLAKY, 0),
+                new Scenario("resume 1000 gaps", SMALL_FILE_SIZE, 8, WAN, 1000));
+    }
+
+    private static List<Scenario> largeSuite(long fileSize) {
+        return Arrays.asList(
+                new Scenario("large 16 connections", fileSize, 16, ShapingHttpServer.Shaping.NONE, 0),
+                new Scenario("large 64 connections", fileSize, 64, ShapingHttpServer.Shaping.NONE, 0),
+                new Scenario("large resets", fileSize, 16, FLAKY, 0),
+                new Scenario("large resume", fileSize, 16, ShapingHttpServer.Shaping.NONE, 10000));
+    }
+
+    // The child runs in its own work directory, so a relative class path would not resolve there
+    private static String getAbsoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(new File(entry).getAbsolutePath());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static Result run(Scenario scenario) throws IOException, InterruptedException {
+        Result result = new Result();
+        Path workDirectory = Files.createTempDirectory("idcdm-harness-");
+        SyntheticFile file = new SyntheticFile(scenario.fileSize, scenario.name.hashCode());
+        ShapingHttpServer server = new ShapingHttpServer(file, scenario.shaping);
+        server.start();
+        try {
+            String url = server.getUrl();
+            result.downloadedBytes = scenario.fileSize - prepareResume(scenario, file, url, workDirectory.toFile());
+
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            String jvmArgs = System.getProperty("harness.jvmArgs", "").trim();
+            if (!jvmArgs.isEmpty()) {
+                command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+            }
+            command.addAll(Arrays.asList("-cp", getAbsoluteClassPath(),
+                    DownloadRunner.class.getName(), url, Integer.toString(scenario.connections)));
+
+            File stdout = workDirectory.resolve("stdout.log").toFile();
+            Process process = new ProcessBuilder(command)
+                    .directory(workDirectory.toFile())
+                    .redirectOutput(stdout)
+                    .redirectError(workDirectory.resolve("stderr.log").toFile())
+                    .start();
+            long timeoutSeconds = Long.getLong("harness.timeoutSeconds", DEFAULT_TIMEOUT_SECONDS);
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                result.status = "TIMED OUT after " + timeoutSeconds + "s, see " + workDirectory;
+                return result;
+            }
+
+            readMetrics(stdout, result);
+            result.requests = server.getRequests();
+            result.resets = server.getResets();
+            result.stalls = server.getStalls();
+
+            long mismatch = file.firstMismatch(workDirectory.resolve(new File(url).getName()).toFile());
+            if (process.exitValue() != 0 || result.wallNanos == 0) {
+                result.status = "FAILED with exit code " + process.exitValue() + ", see " + workDirectory;
+            } else if (mismatch >= 0) {
+                result.status = "CORRUPT from offset " + mismatch + ", see " + workDirectory;
+            } else {
+                result.status = "OK";
+            }
+        } finally {
+            server.stop();
+            if (result.isSuccessful()) {
+                deleteRecursively(workDirectory);
+            }
+        }
+        return result;
+    }
+
+    // Write the metadata and the .tmp file of an interrupted download with the given number of gaps,
+    // each a tenth of its part of the file. Returns the bytes already downloaded
+    private static long prepareResume(Scenario scenario, SyntheticFile file, String url, File directory)
+            throws IOException {
+        if (scenario.gaps == 0) {
+            return 0;
+        }
+
+        long step = scenario.fileSize / scenario.gaps;
+        long[] starts = new long[scenario.gaps];
+        long[] ends = new long[scenario.gaps];
+        long downloadedBytes = 0;
+        for (int i = 0; i < scenario.gaps; i++) {
+            starts[i] = i * step;
+            ends[i] = starts[i] + step - step / 10;
+            downloadedBytes += ends[i] - starts[i];
+        }
+
+        DownloadWorkload workload = Workloads.create("DownloadFixture", DownloadWorkload.class);
+        String filename = workload.writeMetadata(directory, url, file.getETag(), scenario.fileSize, starts, ends);
+        byte[] buffer = new byte[(int) MB];
+        try (RandomAccessFile tempFile = new RandomAccessFile(new File(directory, filename + ".tmp"), "rw")) {
+            tempFile.setLength(scenario.fileSize);
+            for (int i = 0; i < scenario.gaps; i++) {
+                for (long position = starts[i]; position < ends[i]; ) {
+                    int size = (int) Math.min(buffer.length, ends[i] - position);
+                    file.fill(position, buffer, size);
+                    tempFile.seek(position);
+                    tempFile.write(buffer, 0, size);
+                    position += size;
+                }
+            }
+        }
+        return downloadedBytes;
+    }
+
+    private static void readMetrics(File stdout, Result result) throws IOException {
+        for (String line : Files.readAllLines(stdout.toPath())) {
+            if (!line.startsWith(DownloadRunner.METRICS_PREFIX)) {
+                continue;
+            }
+
+            for (String field : line.substring(DownloadRunner.METRICS_PREFIX.length()).trim().split(" ")) {
+                String[] nameAndValue = field.split("=");
+                long value = Long.parseLong(nameAndValue[1]);
+                switch (nameAndValue[0]) {
+                    case "wallNanos":
+                        result.wallNanos = value;
+                        break;
+                    case "cpuNanos":
+                        result.cpuNanos = value;
+                        break;
+                    case "allocatedBytes":
+                        result.allocatedBytes = value;
+                        break;
+                    case "collections":
+                        result.collections = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * A download to measure, the gaps are those of a previous interrupted download, 0 for a new one.
+     */
+    private static final class Scenario {
+        final String name;
+        final long fileSize;
+        final int connections;
+        final ShapingHttpServer.Shaping shaping;
+        final int gaps;
+
+        Scenario(String name, long fileSize, int connections, ShapingHttpServer.Shaping shaping, int gaps) {
+            this.name = name;
+            this.fileSize = fileSize;
+            this.connections = connections;
+            this.shaping = shaping;
+            this.gaps = gaps;
+        }
+    }
+
+    private static final class Result {
+        String status = "NOT RUN";
+        long downloadedBytes;
+        long wallNanos;
+        long cpuNanos;
+        long allocatedBytes;
+        long collections;
+        long requests;
+        long resets;
+        long stalls;
+
+        boolean isSuccessful() {
+            return status.equals("OK");
+        }
+    }
+}
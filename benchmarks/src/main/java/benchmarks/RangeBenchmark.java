@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range.unionRanges and DownloadableMetadata.addRange.
+ *
+ * The ranges are added in file order (a single connection) or shuffled (many connections
+ * and hedged or stolen tails, as the writers see them).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeBenchmark {
+
+    @Param({"SEQUENTIAL", "RANDOM"})
+    public String insertOrder;
+
+    @Param({"1000", "100000"})
+    public int numberOfRanges;
+
+    private RangeWorkload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.create("RangeFixture", RangeWorkload.class);
+        workload.prepare(insertOrder.equals("RANDOM"), numberOfRanges);
+    }
+
+    @Benchmark
+    public void unionRanges(Blackhole blackhole) {
+        workload.unionRanges(blackhole);
+    }
+
+    @Benchmark
+    public Object addRange() {
+        return workload.addRanges();
+    }
+}
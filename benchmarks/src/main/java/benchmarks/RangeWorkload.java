@@ -0,0 +1,18 @@
+package benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Merging of downloaded ranges, implemented by RangeFixture.
+ */
+public interface RangeWorkload {
+
+    // Chunk sized ranges covering the file without gaps, in file order or shuffled
+    void prepare(boolean shuffled, int numberOfRanges);
+
+    // Unite every range with the one after it
+    void unionRanges(Blackhole blackhole);
+
+    // Add all the ranges to fresh metadata, returns the metadata
+    Object addRanges();
+}
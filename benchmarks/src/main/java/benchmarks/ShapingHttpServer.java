@@ -0,0 +1,295 @@
+package benchmarks;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for a download server, serving a single SyntheticFile over HTTP/1.1 on the loopback interface.
+ *
+ * It answers HEAD with the size and ETag of the file, and GET with Range like a real server - 206 with
+ * Content-Range for a single range, multipart/byteranges for several, 416 when no range is satisfiable and
+ * 200 with the whole file without a Range header.
+ *
+ * Every response can be shaped:
+ * - the latency is waited before the response headers are sent, like a round trip to a distant server
+ * - the bandwidth limits every response, and a connection serves one response at a time, so it limits
+ *   every connection
+ * - with the reset probability the connection is dropped at a random offset of the body
+ * - with the stall probability the body stops at a random offset for the stall time, then goes on
+ */
+final class ShapingHttpServer {
+    static final String FILE_PATH = "/file.bin";
+    private static final int BACKLOG = 256;
+    private static final int WRITE_SIZE = 16 * 1024;
+    private static final String BOUNDARY = "IDCDM_HARNESS_BOUNDARY";
+    private final SyntheticFile file;
+    private final Shaping shaping;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final AtomicLong requests;
+    private final AtomicLong bytesServed;
+    private final AtomicLong resets;
+    private final AtomicLong stalls;
+
+    ShapingHttpServer(SyntheticFile file, Shaping shaping) throws IOException {
+        this.file = file;
+        this.shaping = shaping;
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shaping-http-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.requests = new AtomicLong();
+        this.bytesServed = new AtomicLong();
+        this.resets = new AtomicLong();
+        this.stalls = new AtomicLong();
+        httpServer.setExecutor(executor);
+        httpServer.createContext(FILE_PATH, this::handle);
+    }
+
+    void start() {
+        httpServer.start();
+    }
+
+    void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + httpServer.getAddress().getPort() + FILE_PATH;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    long getResets() {
+        return resets.get();
+    }
+
+    long getStalls() {
+        return stalls.get();
+    }
+
+    private void handle(HttpExchange exchange) {
+        requests.incrementAndGet();
+        try {
+            if (shaping.latencyMillis > 0) {
+                Thread.sleep(shaping.latencyMillis);
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("ETag", file.getETag());
+            headers.add("Accept-Ranges", "bytes");
+
+            String method = exchange.getRequestMethod();
+            if (method.equals("HEAD")) {
+                headers.add("Content-Length", Long.toString(file.getSize()));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            if (!method.equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            List<long[]> ranges = parseRanges(exchange.getRequestHeaders().getFirst("Range"));
+            if (ranges == null) {
+                exchange.sendResponseHeaders(200, file.getSize());
+                new ShapedBody(exchange.getResponseBody(), file.getSize()).sendFile(0, file.getSize());
+            } else if (ranges.isEmpty()) {
+                headers.add("Content-Range", "bytes */" + file.getSize());
+                exchange.sendResponseHeaders(416, -1);
+            } else if (ranges.size() == 1) {
+                long start = ranges.get(0)[0];
+                long end = ranges.get(0)[1];
+                headers.add("Content-Range", contentRange(start, end));
+                exchange.sendResponseHeaders(206, end - start);
+                new ShapedBody(exchange.getResponseBody(), end - start).sendFile(start, end);
+            } else {
+                sendMultipart(exchange, ranges);
+            }
+        } catch (IOException e) {
+            // The client went away, or a reset was injected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendMultipart(HttpExchange exchange, List<long[]> ranges) throws IOException, InterruptedException {
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        byte[] closingBoundary = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long bodyLength = closingBoundary.length;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\n"
+                    + "Content-Range: " + contentRange(range[0], range[1]) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            bodyLength += partHeader.length + range[1] - range[0];
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+        exchange.sendResponseHeaders(206, bodyLength);
+        ShapedBody body = new ShapedBody(exchange.getResponseBody(), bodyLength);
+        for (int i = 0; i < ranges.size(); i++) {
+            body.send(partHeaders.get(i), 0, partHeaders.get(i).length);
+            body.sendFile(ranges.get(i)[0], ranges.get(i)[1]);
+        }
+        body.send(closingBoundary, 0, closingBoundary.length);
+    }
+
+    private String contentRange(long start, long end) {
+        return "bytes " + start + "-" + (end - 1) + "/" + file.getSize();
+    }
+
+    // The satisfiable ranges of the header as half open [start, end) ranges, empty when none is satisfiable,
+    // null without a header or with one which is not understood, which is answered with the whole file
+    private List<long[]> parseRanges(String rangeHeader) {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String rangeSpec : rangeHeader.substring("bytes=".length()).split(",")) {
+                String[] bounds = rangeSpec.trim().split("-", -1);
+                if (bounds.length != 2) {
+                    return null;
+                }
+
+                long start;
+                long end;
+                if (bounds[0].isEmpty()) {
+                    // A suffix, the last bytes of the file
+                    start = Math.max(0, file.getSize() - Long.parseLong(bounds[1]));
+                    end = file.getSize();
+                } else {
+                    start = Long.parseLong(bounds[0]);
+                    end = bounds[1].isEmpty() ? file.getSize() : Math.min(file.getSize(), Long.parseLong(bounds[1]) + 1);
+                }
+
+                if (start < end) {
+                    ranges.add(new long[]{start, end});
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Shaping of the responses, the same for every connection.
+     */
+    static final class Shaping {
+        static final Shaping NONE = new Shaping(0, 0, 0, 0, 0);
+        final long bytesPerSecond; // of every connection, 0 for no limit
+        final long latencyMillis;
+        final double resetProbability; // of every response
+        final double stallProbability; // of every response
+        final long stallMillis;
+
+        Shaping(long bytesPerSecond, long latencyMillis, double resetProbability, double stallProbability,
+                long stallMillis) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyMillis = latencyMillis;
+            this.resetProbability = resetProbability;
+            this.stallProbability = stallProbability;
+            this.stallMillis = stallMillis;
+        }
+    }
+
+    /**
+     * The body of a single response, paced to the bandwidth, with the faults it was picked for.
+     */
+    private final class ShapedBody {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private long startNanos;
+        private long sent;
+        private long stallAt;
+        private final long resetAt;
+
+        ShapedBody(OutputStream out, long length) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            this.out = out;
+            this.buffer = new byte[WRITE_SIZE];
+            this.startNanos = System.nanoTime();
+            this.sent = 0;
+            this.stallAt = length > 0 && random.nextDouble() < shaping.stallProbability
+                    ? random.nextLong(length) : Long.MAX_VALUE;
+            this.resetAt = length > 0 && random.nextDouble() < shaping.resetProbability
+                    ? random.nextLong(length) : Long.MAX_VALUE;
+        }
+
+        void sendFile(long start, long end) throws IOException, InterruptedException {
+            long position = start;
+            while (position < end) {
+                int size = (int) Math.min(buffer.length, end - position);
+                file.fill(position, buffer, size);
+                send(buffer, 0, size);
+                position += size;
+            }
+        }
+
+        void send(byte[] data, int offset, int length) throws IOException, InterruptedException {
+            while (length > 0) {
+                if (sent == stallAt) {
+                    stalls.incrementAndGet();
+                    Thread.sleep(shaping.stallMillis);
+                    startNanos += TimeUnit.MILLISECONDS.toNanos(shaping.stallMillis); // no burst after the stall
+                    stallAt = Long.MAX_VALUE;
+                }
+                if (sent == resetAt) {
+                    // Closing the exchange before the whole body was written drops the connection
+                    resets.incrementAndGet();
+                    throw new IOException("reset injected at offset " + sent);
+                }
+
+                int size = (int) Math.min(length, Math.min(stallAt, resetAt) - sent);
+                out.write(data, offset, size);
+                sent += size;
+                bytesServed.addAndGet(size);
+                offset += size;
+                length -= size;
+                pace();
+            }
+        }
+
+        // Sleep until the sent bytes are due at the bandwidth of the connection
+        private void pace() throws InterruptedException {
+            if (shaping.bytesPerSecond <= 0) {
+                return;
+            }
+
+            long dueNanos = startNanos + (long) (sent * 1e9 / shaping.bytesPerSecond);
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
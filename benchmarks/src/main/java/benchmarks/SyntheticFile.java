@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of a file served by the ShapingHttpServer, computed from the offset of every byte,
+ * so a file of several GB needs neither memory nor disk on the server side.
+ *
+ * Every 8 byte word is a mix of its index and a seed, so a byte written at a wrong offset or a range
+ * left as zeros is found by the verification.
+ */
+final class SyntheticFile {
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+    private final long size;
+    private final long seed;
+
+    SyntheticFile(long size, long seed) {
+        this.size = size;
+        this.seed = seed;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    // Changes whenever the size or the seed change, like the ETag of a real file
+    String getETag() {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(seed) + "\"";
+    }
+
+    // Fill buffer[0, length) with the bytes starting at the offset
+    void fill(long offset, byte[] buffer, int length) {
+        int i = 0;
+        // The bytes up to the first whole word, then a word at a time
+        for (; i < length && ((offset + i) & 7) != 0; i++) {
+            buffer[i] = byteAt(offset + i);
+        }
+        for (; i + 8 <= length; i += 8) {
+            long word = mix(((offset + i) >>> 3) ^ seed);
+            for (int b = 0; b < 8; b++) {
+                buffer[i + b] = (byte) (word >>> (b << 3));
+            }
+        }
+        for (; i < length; i++) {
+            buffer[i] = byteAt(offset + i);
+        }
+    }
+
+    byte byteAt(long offset) {
+        long word = mix((offset >>> 3) ^ seed);
+        return (byte) (word >>> ((offset & 7) << 3));
+    }
+
+    // The offset of the first byte of the file which differs from the content, -1 when the whole file matches
+    long firstMismatch(File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != size) {
+                return Math.min(channel.size(), size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(VERIFY_BUFFER_SIZE);
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return position;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) != byteAt(position + i)) {
+                        return position + i;
+                    }
+                }
+                position += read;
+            }
+        }
+        return -1;
+    }
+
+    // The finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
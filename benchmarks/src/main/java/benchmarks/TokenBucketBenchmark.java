@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenBucket.take of a chunk, by a single getter and by many getters sharing the bucket.
+ *
+ * The rate and burst are high enough that a take never parks, so this measures the reservation itself -
+ * the compare and set on the theoretical arrival time every getter contends on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBucketBenchmark {
+    private static final long CHUNK_SIZE = 4096;
+
+    private TokenBucketWorkload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.create("TokenBucketFixture", TokenBucketWorkload.class);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void takeUncontended() throws InterruptedException {
+        workload.take(CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void take4Threads() throws InterruptedException {
+        workload.take(CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void take16Threads() throws InterruptedException {
+        workload.take(CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,9 @@
+package benchmarks;
+
+/**
+ * A shared token bucket, implemented by TokenBucketFixture.
+ */
+public interface TokenBucketWorkload {
+
+    void take(long tokens) throws InterruptedException;
+}
@@ -0,0 +1,21 @@
+package benchmarks;
+
+/**
+ * The downloader classes are package private classes of the default package, which JMH benchmarks
+ * (always in a named package) cannot refer to. So every benchmark drives a workload interface of this package,
+ * implemented by a public fixture class in the default package next to the classes it measures.
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    // Create the default package fixture of the given name
+    static <T> T create(String fixtureClassName, Class<T> workloadType) {
+        try {
+            return workloadType.cast(Class.forName(fixtureClassName).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create the fixture " + fixtureClassName, e);
+        }
+    }
+}
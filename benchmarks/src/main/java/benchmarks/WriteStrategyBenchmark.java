@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing downloaded data the way a FileWriter does, for every OutputMode.
+ *
+ * Every operation writes a 1 MB stripe at the next position of the file, as runs of runLength neighbouring
+ * chunks - 1 is a different connection for every chunk, 256 a whole batch of a single connection.
+ * With force, the stripe is forced to the storage device afterwards, like the CHUNK sync policy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteStrategyBenchmark {
+
+    @Param({"CHANNEL", "MAPPED"})
+    public String outputMode;
+
+    @Param({"1", "16", "256"})
+    public int runLength;
+
+    @Param({"false", "true"})
+    public boolean force;
+
+    private WriteWorkload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workload = Workloads.create("WriteStrategyFixture", WriteWorkload.class);
+        workload.prepare(outputMode, runLength, force);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        workload.close();
+    }
+
+    @Benchmark
+    public long writeStripe() throws IOException {
+        return workload.writeStripe();
+    }
+}
@@ -0,0 +1,16 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * Chunks written into a file by a DownloadOutput, implemented by WriteStrategyFixture.
+ */
+public interface WriteWorkload {
+
+    void prepare(String outputMode, int runLength, boolean force) throws IOException;
+
+    // Write the next stripe of the file, returns the written bytes
+    long writeStripe() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,384 @@
+import Utill.Utilities;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads the scheduled ranges over non blocking connections, as an alternative to a thread per connection.
+ *
+ * All the range requests are driven by the asynchronous java.net.http client, whose selector and a small pool
+ * of event loop threads serve every connection. Response buffers are copied once into pooled chunks,
+ * and a connection asks for the next buffer only after the previous one was queued to a FileWriter,
+ * so a full queue or an empty token bucket slows down the sockets instead of growing memory.
+ *
+ * Nothing blocks an event loop thread. Chunks, tokens and room in the queue are only taken when they are
+ * available right away, otherwise the connection keeps the rest of its buffers and resumes later - through a delayed
+ * executor once its tokens are due, or woken by the writer when it releases a chunk or makes room in the queue.
+ * Ranges which are waiting for a retry, slow assignments which may be hedged, or a host whose circuit is open
+ * delay a connection the same way.
+ *
+ * Like the HTTPRangeGetter, every request goes to a mirror picked by the MirrorSelector,
+ * and the received bytes of every connection are counted for the DownloadMetrics.
+ */
+class AsyncRangeDownloader implements Runnable {
+    private static final String MODULE_NAME = "AsyncRangeDownloader";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(500);
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofMillis(2000);
+    private final MirrorSelector mirrorSelector;
+    private final RangeScheduler rangeScheduler;
+    private final ChunkSink outQueue;
+    private final ChunkPool chunkPool;
+    private final TokenBucket tokenBucket;
+    private final DownloadMetrics downloadMetrics;
+    private final int numberOfConnections;
+    private final int numberOfEventLoopThreads;
+
+    AsyncRangeDownloader(
+            MirrorSelector mirrorSelector,
+            RangeScheduler rangeScheduler,
+            ChunkSink outQueue,
+            ChunkPool chunkPool,
+            TokenBucket tokenBucket,
+            DownloadMetrics downloadMetrics,
+            int numberOfConnections,
+            int numberOfEventLoopThreads) {
+        this.mirrorSelector = mirrorSelector;
+        this.rangeScheduler = rangeScheduler;
+        this.outQueue = outQueue;
+        this.chunkPool = chunkPool;
+        this.tokenBucket = tokenBucket;
+        this.downloadMetrics = downloadMetrics;
+        this.numberOfConnections = numberOfConnections;
+        this.numberOfEventLoopThreads = numberOfEventLoopThreads;
+    }
+
+    @Override
+    public void run() {
+        ExecutorService eventLoopExecutor = Executors.newFixedThreadPool(numberOfEventLoopThreads);
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(eventLoopExecutor)
+                .build();
+        CountDownLatch finishedConnections = new CountDownLatch(numberOfConnections);
+
+        Utilities.Log(MODULE_NAME, "starting " + numberOfConnections + " connections on "
+                + numberOfEventLoopThreads + " event loop threads");
+        for (int i = 0; i < numberOfConnections; i++) {
+            downloadNextAssignment(httpClient, finishedConnections, downloadMetrics.openConnection(MODULE_NAME));
+        }
+
+        try {
+            finishedConnections.await();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted Exception while waiting for the connections " + e.getMessage());
+        } finally {
+            eventLoopExecutor.shutdown();
+        }
+    }
+
+    // Request the next assignment of a connection, the connection is finished when there is no more work
+    private void downloadNextAssignment(
+            HttpClient httpClient,
+            CountDownLatch finishedConnections,
+            DownloadMetrics.Connection connectionMetrics) {
+        // Wait while the circuit of the host is open
+        MirrorSelector.Mirror mirror = mirrorSelector.select();
+        CircuitBreaker circuitBreaker = mirror.getCircuitBreaker();
+        long circuitDelay = circuitBreaker.delayNanos();
+        if (circuitDelay > 0) {
+            delayedExecutor(circuitDelay).execute(
+                    () -> downloadNextAssignment(httpClient, finishedConnections, connectionMetrics));
+            return;
+        }
+
+        RangeScheduler.Assignment assignment = rangeScheduler.poll();
+        if (assignment == null) {
+            // Come back when a retry is due or a slow assignment may be hedged
+            long idleDelay = rangeScheduler.idleDelayNanos();
+            if (idleDelay >= 0) {
+                delayedExecutor(idleDelay).execute(
+                        () -> downloadNextAssignment(httpClient, finishedConnections, connectionMetrics));
+            } else {
+                downloadMetrics.closeConnection(connectionMetrics);
+                finishedConnections.countDown();
+            }
+            return;
+        }
+
+        long startRange = assignment.getPosition();
+        String rangRequestProperty = String.format("bytes=%d-%d", startRange, assignment.getEnd() - 1);
+        if (Utilities.isDebugEnabled()) {
+            Utilities.Debug(MODULE_NAME, "range request - " + rangRequestProperty);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(mirror.getUrl()))
+                .timeout(RESPONSE_TIMEOUT)
+                .header("Range", rangRequestProperty)
+                .GET()
+                .build();
+
+        long requestStartTime = System.nanoTime();
+        httpClient.sendAsync(request,
+                        responseInfo -> bodySubscriber(responseInfo, mirror, assignment, startRange, connectionMetrics))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        System.err.println("There was an exception while getting data from the network: "
+                                + error.getMessage());
+                        rangeScheduler.reportFailure();
+                        mirror.recordFailure();
+
+                        // A connection dropped in the middle of the data still shows the host is up
+                        if (assignment.hasProgress()) {
+                            circuitBreaker.recordSuccess();
+                        } else {
+                            circuitBreaker.recordFailure();
+                        }
+                    } else if (response.statusCode() == 200 || response.statusCode() == 206) {
+                        circuitBreaker.recordSuccess();
+                        mirror.recordTransfer(response.body(), System.nanoTime() - requestStartTime);
+                    }
+                    rangeScheduler.complete(assignment);
+                    downloadNextAssignment(httpClient, finishedConnections, connectionMetrics);
+                });
+    }
+
+    // The body of a response is the number of bytes received
+    private HttpResponse.BodySubscriber<Long> bodySubscriber(
+            HttpResponse.ResponseInfo responseInfo,
+            MirrorSelector.Mirror mirror,
+            RangeScheduler.Assignment assignment,
+            long startRange,
+            DownloadMetrics.Connection connectionMetrics) {
+        int resCode = responseInfo.statusCode();
+        if (Utilities.isDebugEnabled()) {
+            Utilities.Debug(MODULE_NAME, "Response code - " + resCode);
+        }
+
+        // Check the http response code(200 or 206)
+        if (resCode != 200 && resCode != 206) {
+            System.err.println("Unable to download data, Response code from server was - " + resCode);
+            rangeScheduler.reportFailure();
+            mirror.getCircuitBreaker().recordFailure();
+            mirror.recordFailure();
+            return HttpResponse.BodySubscribers.replacing(0L);
+        }
+
+        // A server which ignored the range header sends the whole file, from its first byte
+        return new RangeBodySubscriber(mirror, assignment, resCode == 200 ? 0 : startRange, connectionMetrics);
+    }
+
+    private static Executor delayedExecutor(long delayNanos) {
+        return CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Copies the response buffers of a single assignment into chunks, one buffer list at a time.
+     *
+     * The next buffer list is requested only once all the chunks of the previous one were queued. A list which
+     * cannot be queued right away is kept and queued by resume, so the callbacks are synchronized on this subscriber.
+     * A wakeup may come for a chunk or room another connection took first, the subscriber then just stalls again.
+     */
+    private class RangeBodySubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final RangeScheduler.Assignment assignment;
+        private final CompletableFuture<Long> body;
+        private final BandwidthLimiter bandwidthLimiter;
+        private final DownloadMetrics.Connection connectionMetrics;
+        private Flow.Subscription subscription;
+        private final long startRange;
+        private long offset;
+        private List<ByteBuffer> buffers;
+        private int bufferIndex;
+        private Chunk pendingChunk; // claimed, but not queued yet
+        private boolean queueing;
+        private boolean stalled;
+        // Run by the writer threads, so the subscriber resumes in the common pool like its delayed tasks
+        private final Runnable wakeUp = () -> ForkJoinPool.commonPool().execute(this::resume);
+        private boolean responseEnded;
+        private volatile boolean waitingForData;
+        private volatile long waitingSince;
+
+        RangeBodySubscriber(
+                MirrorSelector.Mirror mirror,
+                RangeScheduler.Assignment assignment,
+                long startRange,
+                DownloadMetrics.Connection connectionMetrics) {
+            this.assignment = assignment;
+            this.connectionMetrics = connectionMetrics;
+            this.body = new CompletableFuture<>();
+            this.startRange = startRange;
+            this.offset = startRange;
+            this.bandwidthLimiter = new BandwidthLimiter(tokenBucket, mirror.getHost());
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            requestData();
+            delayedExecutor(RESPONSE_TIMEOUT.toNanos()).execute(this::checkIdle);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> buffers) {
+            waitingForData = false;
+            this.buffers = buffers;
+            this.bufferIndex = 0;
+            queueing = true;
+            queueBuffers();
+        }
+
+        // Continue queueing the kept buffers, once the chunk, tokens or room it waited for may be there
+        private synchronized void resume() {
+            if (!stalled) {
+                return; // woken by a callback registered earlier, while queueing went on
+            }
+            stalled = false;
+            queueBuffers();
+        }
+
+        private void requestData() {
+            waitingSince = System.nanoTime();
+            waitingForData = true;
+            subscription.request(1);
+        }
+
+        // The client has no read timeout, so a connection which stopped sending is failed here and retried
+        private void checkIdle() {
+            if (body.isDone()) {
+                return;
+            }
+
+            long idleNanos = System.nanoTime() - waitingSince;
+            if (waitingForData && idleNanos >= RESPONSE_TIMEOUT.toNanos()) {
+                subscription.cancel();
+                body.completeExceptionally(new IOException("Read timed out at offset " + offset));
+                return;
+            }
+
+            delayedExecutor(RESPONSE_TIMEOUT.toNanos()).execute(this::checkIdle);
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+            releasePendingChunk();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            responseEnded = true;
+            // The kept buffers are queued first
+            if (!queueing) {
+                completeBody();
+            }
+        }
+
+        private void completeBody() {
+            // The response ended before the whole range arrived, the rest is retried
+            if (!assignment.isDone()) {
+                body.completeExceptionally(new IOException(
+                        "connection closed at offset " + offset + " before the range end"));
+                return;
+            }
+            body.complete(offset - startRange);
+        }
+
+        // Copy the buffers into pooled chunks and put them in the queue. Returns without waiting
+        // when a chunk, tokens or room in the queue are not available, and resumes later
+        private void queueBuffers() {
+            if (body.isDone()) {
+                releasePendingChunk(); // failed or timed out meanwhile
+                return;
+            }
+
+            while (true) {
+                if (pendingChunk != null) {
+                    if (!outQueue.offer(pendingChunk, wakeUp)) {
+                        stalled = true;
+                        return;
+                    }
+                    pendingChunk = null; // the writer releases it
+                }
+
+                ByteBuffer buffer = nextBuffer();
+                if (buffer == null || assignment.isDone()) {
+                    break;
+                }
+
+                Chunk chunk = chunkPool.tryAcquire(wakeUp);
+                if (chunk == null) {
+                    stalled = true;
+                    return;
+                }
+                int dataSize = Math.min(buffer.remaining(), chunk.getData().length);
+                buffer.get(chunk.getData(), 0, dataSize);
+
+                long tokenDelay = bandwidthLimiter.reserve(dataSize); // Token availability
+                connectionMetrics.addReceivedBytes(dataSize);
+                int claimedSize = assignment.claim(chunk, offset, dataSize); // Bytes nobody else received
+                offset += dataSize;
+                if (claimedSize > 0) {
+                    pendingChunk = chunk;
+                } else {
+                    chunkPool.release(chunk);
+                }
+
+                if (tokenDelay > 0) {
+                    stalled = true;
+                    delayedExecutor(tokenDelay).execute(this::resume);
+                    return;
+                }
+            }
+
+            queueing = false;
+            buffers = null;
+            if (responseEnded) {
+                completeBody();
+            } else if (assignment.isDone()) {
+                // Stop reading once the assignment is done, its tail was stolen or a hedging reader received the rest
+                subscription.cancel();
+                body.complete(offset - startRange);
+            } else {
+                requestData();
+            }
+        }
+
+        // The first buffer with bytes left to copy, or null when all of them were copied
+        private ByteBuffer nextBuffer() {
+            while (bufferIndex < buffers.size()) {
+                ByteBuffer buffer = buffers.get(bufferIndex);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                bufferIndex++;
+            }
+            return null;
+        }
+
+        private void releasePendingChunk() {
+            if (pendingChunk != null) {
+                chunkPool.release(pendingChunk);
+                pendingChunk = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The nested bandwidth limits a single connection is subject to:
+ * a process wide limit, a limit per host, the limit of its download and a limit per connection.
+ *
+ * Taking tokens reserves them in every limited bucket at once and waits for the latest reservation,
+ * so a connection moves only as fast as its tightest limit allows.
+ * Buckets are shared by all the connections under them and tokens are taken on demand, rather than split
+ * into fixed shares, so the share a connection does not use is taken by its siblings and the aggregate
+ * limits stay fully used.
+ *
+ * The global, per host and per connection limits are given in bytes per second by system properties,
+ * the download limit is the MAX-DOWNLOAD-LIMIT argument.
+ */
+class BandwidthLimiter {
+    private static final String GLOBAL_LIMIT_PROPERTY = "idcdm.globalLimit";
+    private static final String HOST_LIMIT_PROPERTY = "idcdm.hostLimit";
+    private static final String CONNECTION_LIMIT_PROPERTY = "idcdm.connectionLimit";
+    private static final String BURST_BYTES_PROPERTY = "idcdm.burstBytes";
+    // The default burst is a tenth of a second of the limit
+    private static final long DEFAULT_BURST_FRACTION = 10;
+    private static final TokenBucket GLOBAL_BUCKET = newBucket(Long.getLong(GLOBAL_LIMIT_PROPERTY));
+    private static final ConcurrentHashMap<String, TokenBucket> HOST_BUCKETS = new ConcurrentHashMap<>();
+    private final TokenBucket[] limitedBuckets;
+
+    BandwidthLimiter(TokenBucket downloadBucket, String host) {
+        List<TokenBucket> buckets = new ArrayList<>();
+        buckets.add(newBucket(Long.getLong(CONNECTION_LIMIT_PROPERTY)));
+        buckets.add(downloadBucket);
+        buckets.add(HOST_BUCKETS.computeIfAbsent(host, h -> newBucket(Long.getLong(HOST_LIMIT_PROPERTY))));
+        buckets.add(GLOBAL_BUCKET);
+
+        // Only the limited buckets are consulted on every take
+        buckets.removeIf(TokenBucket::isUnlimited);
+        this.limitedBuckets = buckets.toArray(new TokenBucket[0]);
+    }
+
+    void take(long tokens) throws InterruptedException {
+        if (limitedBuckets.length == 0) {
+            return;
+        }
+
+        TokenBucket.awaitTokens(reserveInAllBuckets(tokens));
+    }
+
+    // Reserve the tokens without waiting, for callers which must not block.
+    // Returns the nanoseconds till they are due, 0 when they are available now
+    long reserve(long tokens) {
+        if (limitedBuckets.length == 0) {
+            return 0;
+        }
+
+        long delayNanos = reserveInAllBuckets(tokens) - System.nanoTime();
+        if (delayNanos <= 0) {
+            return 0;
+        }
+        TokenBucket.addBlockedNanos(delayNanos);
+        return delayNanos;
+    }
+
+    // Returns the System.nanoTime at which the latest reservation is due
+    private long reserveInAllBuckets(long tokens) {
+        long dueTime = limitedBuckets[0].reserve(tokens);
+        for (int i = 1; i < limitedBuckets.length; i++) {
+            long bucketDueTime = limitedBuckets[i].reserve(tokens);
+            if (bucketDueTime - dueTime > 0) {
+                dueTime = bucketDueTime;
+            }
+        }
+        return dueTime;
+    }
+
+    // A bucket limited to the given bytes per second, or an unlimited one when there is no limit
+    static TokenBucket newBucket(Long bytesPerSecond) {
+        if (bytesPerSecond == null) {
+            return TokenBucket.unlimited();
+        }
+
+        long burstSize = Long.getLong(BURST_BYTES_PROPERTY,
+                Math.max(HTTPRangeGetter.CHUNK_SIZE, bytesPerSecond / DEFAULT_BURST_FRACTION));
+        return new TokenBucket(bytesPerSecond, burstSize);
+    }
+}
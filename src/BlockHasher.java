@@ -0,0 +1,241 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hashes the blocks of the downloaded file while they are written, without a second read pass.
+ *
+ * The file is split into blocks of BLOCK_SIZE bytes, the same as a writer stripe, so a block is always hashed
+ * by the FileWriter that writes it. Bytes written at the hashed end of their block are fed to the block digest
+ * straight from the chunk. Bytes written ahead of it are only recorded, and read back from the file once the hashed
+ * end reaches them - usually from the page cache, as only the pieces a connection wrote out of order are read.
+ *
+ * The digest of the whole file is a tree hash - the digest of all the block digests in order,
+ * so it can be computed from the stored block digests in any order the blocks completed.
+ */
+class BlockHasher {
+    private static final String MODULE_NAME = "BlockHasher";
+    static final long BLOCK_SIZE = StripedWriters.STRIPE_SIZE;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final String algorithm;
+    private final FileChannel readChannel;
+    private final long fileSize;
+    private final TreeMap<Long, Long> initiallyDownloadedRanges;
+    private final Map<Long, BlockState> blockStates;
+    private final Map<Long, byte[]> completedDigests;
+    private final ByteBuffer readBuffer;
+
+    BlockHasher(String algorithm, File file, long fileSize, TreeMap<Long, Long> initiallyDownloadedRanges)
+            throws IOException {
+        this.algorithm = algorithm;
+        this.readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = fileSize;
+        this.initiallyDownloadedRanges = initiallyDownloadedRanges;
+        this.blockStates = new HashMap<>();
+        this.completedDigests = new HashMap<>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    // Hash the data of a chunk which was just written
+    void hashWritten(Chunk chunk) throws IOException {
+        long position = chunk.getOffset();
+        int dataOffset = 0;
+        int remaining = (int) chunk.getSize_in_bytes();
+
+        // A chunk may cross a block boundary
+        while (remaining > 0) {
+            long block = position / BLOCK_SIZE;
+            long blockEnd = blockEnd(block);
+            int length = (int) Math.min(remaining, blockEnd - position);
+            BlockState blockState = blockState(block);
+
+            if (position == blockState.hashedEnd) {
+                blockState.digest.update(chunk.getData(), dataOffset, length);
+                blockState.hashedEnd += length;
+                hashWrittenAhead(blockState);
+            } else if (position > blockState.hashedEnd) {
+                blockState.writtenAhead.put(position, position + length);
+            }
+
+            if (blockState.hashedEnd >= blockEnd) {
+                completedDigests.put(block, blockState.digest.digest());
+                blockStates.remove(block);
+            }
+
+            position += length;
+            dataOffset += length;
+            remaining -= length;
+        }
+    }
+
+    // The digests of the blocks completed since the last call
+    Map<Long, byte[]> takeCompletedDigests() {
+        Map<Long, byte[]> digests = new HashMap<>(completedDigests);
+        completedDigests.clear();
+        return digests;
+    }
+
+    void close() throws IOException {
+        readChannel.close();
+    }
+
+    private long blockEnd(long block) {
+        return Math.min((block + 1) * BLOCK_SIZE, fileSize);
+    }
+
+    // The state of a block, a new block starts with what was downloaded by a previous attempt
+    private BlockState blockState(long block) throws IOException {
+        BlockState blockState = blockStates.get(block);
+        if (blockState != null) {
+            return blockState;
+        }
+
+        long blockStart = block * BLOCK_SIZE;
+        long blockEnd = blockEnd(block);
+        blockState = new BlockState(newDigest(algorithm), blockStart);
+        blockStates.put(block, blockState);
+
+        Map.Entry<Long, Long> previousRange = initiallyDownloadedRanges.floorEntry(blockStart);
+        if (previousRange != null && previousRange.getValue() > blockStart) {
+            blockState.writtenAhead.put(blockStart, Math.min(previousRange.getValue(), blockEnd));
+        }
+        for (Map.Entry<Long, Long> range : initiallyDownloadedRanges.subMap(blockStart, false, blockEnd, false).entrySet()) {
+            blockState.writtenAhead.put(range.getKey(), Math.min(range.getValue(), blockEnd));
+        }
+        hashWrittenAhead(blockState);
+
+        return blockState;
+    }
+
+    // Read back and hash the ranges written ahead, as long as they continue the hashed end
+    private void hashWrittenAhead(BlockState blockState) throws IOException {
+        Map.Entry<Long, Long> range;
+        while ((range = blockState.writtenAhead.firstEntry()) != null && range.getKey() <= blockState.hashedEnd) {
+            blockState.writtenAhead.pollFirstEntry();
+            if (range.getValue() > blockState.hashedEnd) {
+                hashFromFile(blockState.digest, blockState.hashedEnd, range.getValue(), readChannel, readBuffer);
+                blockState.hashedEnd = range.getValue();
+            }
+        }
+    }
+
+    private static void hashFromFile(
+            MessageDigest digest,
+            long start,
+            long end,
+            FileChannel channel,
+            ByteBuffer buffer) throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int readBytes = channel.read(buffer, position);
+            if (readBytes == -1) {
+                throw new IOException("The file ended at " + position + " before the end of the block");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += readBytes;
+        }
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e);
+        }
+    }
+
+    // Compare the stored digests of the downloaded blocks with the file, and drop the blocks which differ
+    // so they are downloaded again. Returns the number of dropped blocks
+    static int verify(DownloadableMetadata downloadableMetadata, File file, long fileSize, String algorithm)
+            throws IOException {
+        int droppedBlocks = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+            for (long block : downloadableMetadata.getDigestedBlocks()) {
+                Range blockRange = new Range(block * BLOCK_SIZE, Math.min((block + 1) * BLOCK_SIZE, fileSize));
+                if (!downloadableMetadata.isDownloaded(blockRange)) {
+                    downloadableMetadata.removeBlockDigest(block);
+                    continue;
+                }
+
+                MessageDigest digest = newDigest(algorithm);
+                hashFromFile(digest, blockRange.getStart(), blockRange.getEnd(), channel, buffer);
+                if (!MessageDigest.isEqual(digest.digest(), downloadableMetadata.getBlockDigest(block))) {
+                    Utilities.Log(MODULE_NAME, "block " + block + " failed verification, downloading it again");
+                    downloadableMetadata.removeDownloadedRange(blockRange);
+                    downloadableMetadata.removeBlockDigest(block);
+                    droppedBlocks++;
+                }
+            }
+        }
+
+        return droppedBlocks;
+    }
+
+    // The tree hash of the whole file. Blocks without a stored digest, which were only recorded
+    // in a journal before a crash, are hashed from the file and their digests are stored
+    static String treeHash(DownloadableMetadata downloadableMetadata, File file, long fileSize, String algorithm)
+            throws IOException {
+        MessageDigest treeDigest = newDigest(algorithm);
+        long numberOfBlocks = (fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int hashedBlocks = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+            for (long block = 0; block < numberOfBlocks; block++) {
+                byte[] blockDigest = downloadableMetadata.getBlockDigest(block);
+                if (blockDigest == null) {
+                    MessageDigest digest = newDigest(algorithm);
+                    hashFromFile(digest, block * BLOCK_SIZE, Math.min((block + 1) * BLOCK_SIZE, fileSize),
+                            channel, buffer);
+                    blockDigest = digest.digest();
+                    downloadableMetadata.putBlockDigest(block, blockDigest);
+                    hashedBlocks++;
+                }
+                treeDigest.update(blockDigest);
+            }
+        }
+
+        Utilities.Log(MODULE_NAME, "tree hash of " + numberOfBlocks + " blocks, "
+                + hashedBlocks + " of them read back from the file");
+        return toHex(treeDigest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static class BlockState {
+        private final MessageDigest digest;
+        private long hashedEnd;
+        // start -> end of the ranges written after the hashed end
+        private final TreeMap<Long, Long> writtenAhead;
+
+        BlockState(MessageDigest digest, long blockStart) {
+            this.digest = digest;
+            this.hashedEnd = blockStart;
+            this.writtenAhead = new TreeMap<>();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes chunks with positional FileChannel writes.
+ *
+ * A single chunk is written with one positional write, neighbouring chunks are gathered into one vectored write.
+ */
+class ChannelOutput implements DownloadOutput {
+    private final FileChannel fileChannel;
+
+    ChannelOutput(File file) throws IOException {
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public long write(List<Chunk> chunks) throws IOException {
+        long chunkOffset = chunks.get(0).getOffset();
+        long runSize = 0;
+
+        if (chunks.size() == 1) {
+            ByteBuffer buffer = chunks.get(0).getDataBuffer();
+            long position = chunkOffset;
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            return position - chunkOffset;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = chunks.get(i).getDataBuffer();
+            runSize += buffers[i].remaining();
+        }
+
+        fileChannel.position(chunkOffset);
+        long remaining = runSize;
+        while (remaining > 0) {
+            remaining -= fileChannel.write(buffers);
+        }
+
+        return runSize;
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
@@ -1,15 +1,24 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
  * Contains an offset, bytes of data, and size
+ *
+ * Chunks are borrowed from a ChunkPool and reused, so the data buffer is not copied.
+ * The chunk should not be touched after it was released back to its pool.
  */
 class Chunk {
-    private byte[] data;
+    private final byte[] data;
+    private final ByteBuffer dataBuffer;
+    private final int capacity;
     private long offset;
     private long size_in_bytes;
 
     Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+        this.data = data;
+        this.dataBuffer = data != null ? ByteBuffer.wrap(data) : null;
+        this.capacity = data != null ? data.length : 0;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
     }
@@ -18,6 +27,18 @@ class Chunk {
         return data;
     }
 
+    // The length of the data buffer, kept in the chunk so the ChunkRing does not touch the buffer itself
+    int getCapacity() {
+        return capacity;
+    }
+
+    // The data as a buffer, positioned at the first byte and limited to the chunk size
+    ByteBuffer getDataBuffer() {
+        dataBuffer.clear();
+        dataBuffer.limit((int) size_in_bytes);
+        return dataBuffer;
+    }
+
     long getOffset() {
         return offset;
     }
@@ -25,4 +46,10 @@ class Chunk {
     long getSize_in_bytes() {
         return size_in_bytes;
     }
+
+    // Set the file position and size of the data currently held by the chunk
+    void set(long offset, int size_in_bytes) {
+        this.offset = offset;
+        this.size_in_bytes = size_in_bytes;
+    }
 }
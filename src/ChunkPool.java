@@ -0,0 +1,75 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable chunks.
+ *
+ * The HTTPRangeGetters acquire a chunk, read into its buffer and put it in the queue,
+ * and the FileWriter releases it back after it was written to disk.
+ * Chunks are allocated lazily up to the capacity, after that acquire blocks until a chunk is released.
+ * tryAcquire returns null instead and registers a callback, and all the registered callbacks run when a chunk
+ * is released, like a signalAll. A woken taker which finds no chunk registers again.
+ */
+class ChunkPool {
+    private final BlockingQueue<Chunk> freeChunks;
+    private final AtomicInteger numberOfAllocatedChunks;
+    private final ConcurrentLinkedQueue<Runnable> waitingTakers;
+    private final int capacity;
+    private final int chunkSize;
+
+    ChunkPool(int capacity, int chunkSize) {
+        this.freeChunks = new ArrayBlockingQueue<>(capacity);
+        this.numberOfAllocatedChunks = new AtomicInteger(0);
+        this.waitingTakers = new ConcurrentLinkedQueue<>();
+        this.capacity = capacity;
+        this.chunkSize = chunkSize;
+    }
+
+    Chunk acquire() throws InterruptedException {
+        Chunk chunk = pollOrAllocate();
+        return chunk != null ? chunk : freeChunks.take();
+    }
+
+    // Get a chunk without waiting, for callers which must not block. When all of them are in use null is returned,
+    // and onRelease runs on the releasing thread once a chunk may be free, so it should only hand the work over
+    Chunk tryAcquire(Runnable onRelease) {
+        Chunk chunk = pollOrAllocate();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        // Register, then look again, so a chunk released meanwhile is not missed
+        waitingTakers.add(onRelease);
+        chunk = pollOrAllocate();
+        if (chunk != null) {
+            waitingTakers.remove(onRelease);
+        }
+        return chunk;
+    }
+
+    private Chunk pollOrAllocate() {
+        Chunk chunk = freeChunks.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+
+        // Allocate a new chunk only while the pool is under its capacity
+        if (numberOfAllocatedChunks.incrementAndGet() <= capacity) {
+            return new Chunk(new byte[chunkSize], 0, 0);
+        }
+        numberOfAllocatedChunks.decrementAndGet();
+
+        return freeChunks.poll();
+    }
+
+    void release(Chunk chunk) {
+        freeChunks.offer(chunk);
+
+        Runnable waitingTaker;
+        while ((waitingTaker = waitingTakers.poll()) != null) {
+            waitingTaker.run();
+        }
+    }
+}
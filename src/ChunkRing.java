@@ -0,0 +1,281 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A ring buffer of chunks, filled by many getters and drained by a single FileWriter, bounded by bytes.
+ *
+ * A getter first reserves the buffer size of its chunk from the byte budget, then claims the next sequence
+ * of the ring with a single atomic increment and publishes the chunk into its slot. The writer drains all
+ * the published slots in order at once. Neither side takes a lock unless it has to wait.
+ *
+ * The reserved bytes are returned only once the writer wrote the chunks and released them, so the budget bounds
+ * all the chunk buffers the writer has not finished with yet, and the memory of a download does not depend on
+ * how the data was split into chunks.
+ * While the budget is used above its high watermark the ring reports that it is congested,
+ * so the RangeScheduler stops adding readers.
+ *
+ * Producers which must not block offer their chunks instead. An offer which finds no room registers a callback,
+ * and all the registered callbacks run when the writer drains or releases chunks, like the waiting producers.
+ */
+class ChunkRing {
+    private static final int CONSUMER_SPINS = 64;
+    private static final double HIGH_WATERMARK = 0.75;
+    private final Chunk[] slots;
+    // The sequence last published in every slot, -1 before the first
+    private final AtomicLongArray publishedSequences;
+    private final int mask;
+    private final long byteBudget;
+    private final long highWatermark;
+    private final AtomicLong nextSequence;
+    private volatile long consumedSequence; // written by the consumer only
+    private final AtomicLong bytesInFlight;
+    private final ReentrantLock lock;
+    private final Condition roomAvailable;
+    private final AtomicInteger waitingProducers;
+    private final ConcurrentLinkedQueue<Runnable> waitingOffers;
+    private final AtomicReference<Thread> waitingConsumer;
+    private final LongAdder producerStalls;
+    private final LongAdder producerStalledNanos;
+
+    ChunkRing(long byteBudget, int chunkSize) {
+        // Full chunks never need more slots than the budget holds, smaller ones wait for a slot
+        int capacity = Integer.highestOneBit((int) Math.max(2, byteBudget / chunkSize) * 2 - 1);
+        this.slots = new Chunk[capacity];
+        this.publishedSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            publishedSequences.set(i, -1);
+        }
+        this.mask = capacity - 1;
+        this.byteBudget = byteBudget;
+        this.highWatermark = (long) (byteBudget * HIGH_WATERMARK);
+        this.nextSequence = new AtomicLong(0);
+        this.consumedSequence = 0;
+        this.bytesInFlight = new AtomicLong(0);
+        this.lock = new ReentrantLock();
+        this.roomAvailable = lock.newCondition();
+        this.waitingProducers = new AtomicInteger(0);
+        this.waitingOffers = new ConcurrentLinkedQueue<>();
+        this.waitingConsumer = new AtomicReference<>();
+        this.producerStalls = new LongAdder();
+        this.producerStalledNanos = new LongAdder();
+    }
+
+    // Add a chunk, waits while the byte budget or the ring is full
+    void put(Chunk chunk) throws InterruptedException {
+        long bytes = chunk.getCapacity();
+        while (!tryReserve(bytes)) {
+            awaitRoom(() -> canReserve(bytes));
+        }
+
+        long sequence = nextSequence.getAndIncrement();
+        if (sequence - consumedSequence >= slots.length) {
+            awaitRoom(() -> sequence - consumedSequence < slots.length);
+        }
+
+        publish(sequence, chunk);
+    }
+
+    // Add a chunk if the byte budget and the ring have room for it right now. Returns false without it otherwise,
+    // and onRoom runs on the writer thread once there may be room, so it should only hand the work over
+    boolean offer(Chunk chunk, Runnable onRoom) {
+        if (tryOffer(chunk)) {
+            return true;
+        }
+
+        // Register, then try again, so room made meanwhile is not missed
+        waitingOffers.add(onRoom);
+        if (tryOffer(chunk)) {
+            waitingOffers.remove(onRoom);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryOffer(Chunk chunk) {
+        long bytes = chunk.getCapacity();
+        if (!tryReserve(bytes)) {
+            return false;
+        }
+
+        // Claim a sequence only when its slot is free, so a full ring is left alone
+        long sequence;
+        do {
+            sequence = nextSequence.get();
+            if (sequence - consumedSequence >= slots.length) {
+                bytesInFlight.addAndGet(-bytes);
+                signalWaitingProducers();
+                return false;
+            }
+        } while (!nextSequence.compareAndSet(sequence, sequence + 1));
+
+        publish(sequence, chunk);
+        return true;
+    }
+
+    private void publish(long sequence, Chunk chunk) {
+        int index = (int) (sequence & mask);
+        slots[index] = chunk;
+        publishedSequences.set(index, sequence); // the volatile write publishes the slot to the consumer
+
+        // Only the first producer after the consumer parked wakes it, the others find nobody registered
+        if (waitingConsumer.get() != null) {
+            Thread consumer = waitingConsumer.getAndSet(null);
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    // Move up to maxChunks published chunks into the batch, in the order they were claimed.
+    // Waits up to the timeout for the first one, returns the number of chunks moved
+    int drainTo(List<Chunk> batch, int maxChunks, long timeoutNanos) throws InterruptedException {
+        long sequence = consumedSequence;
+
+        if (!isPublished(sequence)) {
+            for (int i = 0; i < CONSUMER_SPINS && !isPublished(sequence); i++) {
+                Thread.onSpinWait();
+            }
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            try {
+                while (!isPublished(sequence)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return 0;
+                    }
+
+                    // Register, then check again, so a chunk published meanwhile is not missed
+                    waitingConsumer.set(Thread.currentThread());
+                    if (isPublished(sequence)) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waitingConsumer.set(null);
+            }
+        }
+
+        int drained = 0;
+        while (drained < maxChunks && isPublished(sequence)) {
+            int index = (int) (sequence & mask);
+            batch.add(slots[index]);
+            slots[index] = null;
+            sequence++;
+            drained++;
+        }
+
+        consumedSequence = sequence;
+        signalWaitingProducers();
+        wakeWaitingOffers();
+        return drained;
+    }
+
+    // Return the budget of chunks the consumer is done with
+    void release(List<Chunk> chunks) {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            bytes += chunk.getCapacity();
+        }
+
+        bytesInFlight.addAndGet(-bytes);
+        signalWaitingProducers();
+        wakeWaitingOffers();
+    }
+
+    // Whether the budget is used above its high watermark
+    boolean isCongested() {
+        return bytesInFlight.get() >= highWatermark;
+    }
+
+    long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    long getByteBudget() {
+        return byteBudget;
+    }
+
+    long getProducerStalls() {
+        return producerStalls.sum();
+    }
+
+    long getProducerStalledNanos() {
+        return producerStalledNanos.sum();
+    }
+
+    private boolean isPublished(long sequence) {
+        return publishedSequences.get((int) (sequence & mask)) == sequence;
+    }
+
+    // A chunk bigger than the whole budget still passes once the ring is empty
+    private boolean canReserve(long bytes) {
+        long reserved = bytesInFlight.get();
+        return reserved == 0 || reserved + bytes <= byteBudget;
+    }
+
+    private boolean tryReserve(long bytes) {
+        long reserved;
+        do {
+            reserved = bytesInFlight.get();
+            if (reserved != 0 && reserved + bytes > byteBudget) {
+                return false;
+            }
+        } while (!bytesInFlight.compareAndSet(reserved, reserved + bytes));
+
+        return true;
+    }
+
+    // The slow path of the producers. The consumer signals only when someone is registered here,
+    // and a producer registers before it checks, so a wakeup is never lost
+    private void awaitRoom(BooleanSupplier hasRoom) throws InterruptedException {
+        long stallStart = System.nanoTime();
+        lock.lock();
+        try {
+            waitingProducers.incrementAndGet();
+            try {
+                while (!hasRoom.getAsBoolean()) {
+                    roomAvailable.await();
+                }
+            } finally {
+                waitingProducers.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        producerStalls.increment();
+        producerStalledNanos.add(System.nanoTime() - stallStart);
+    }
+
+    private void signalWaitingProducers() {
+        if (waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                roomAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Not called when an offer gives its room back, as the offers woken by it would find no room either
+    private void wakeWaitingOffers() {
+        Runnable waitingOffer;
+        while ((waitingOffer = waitingOffers.poll()) != null) {
+            waitingOffer.run();
+        }
+    }
+}
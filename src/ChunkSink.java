@@ -0,0 +1,17 @@
+/**
+ * Where the getters put the chunks they received. The chunk belongs to the sink afterwards,
+ * which releases it back to its pool once it was written.
+ */
+interface ChunkSink {
+
+    // Hand over the chunk, blocks while the sink is full
+    void put(Chunk chunk) throws InterruptedException;
+
+    // Hand over the chunk if there is room for it right now, for callers which must not block.
+    // Returns false when the chunk, or a part of it, was not taken - the chunk then holds the part left to hand over,
+    // and onRoom runs once there may be room for it
+    boolean offer(Chunk chunk, Runnable onRoom);
+
+    // Whether the chunks come in faster than they are written, so more readers would only wait
+    boolean isBackpressured();
+}
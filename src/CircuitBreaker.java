@@ -0,0 +1,61 @@
+import Utill.Utilities;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circuit breaker per host.
+ *
+ * After FAILURE_THRESHOLD consecutive failed requests the circuit opens, and no request is sent to the host
+ * for OPEN_DURATION. After that requests are let through again, the first success closes the circuit
+ * and another failure opens it right away.
+ */
+class CircuitBreaker {
+    private static final String MODULE_NAME = "CircuitBreaker";
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_DURATION = TimeUnit.SECONDS.toNanos(5);
+    private static final ConcurrentHashMap<String, CircuitBreaker> HOST_CIRCUIT_BREAKERS = new ConcurrentHashMap<>();
+    private final String host;
+    private int consecutiveFailures;
+    private long openUntil;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+        this.consecutiveFailures = 0;
+        this.openUntil = System.nanoTime();
+    }
+
+    static CircuitBreaker forHost(String host) {
+        return HOST_CIRCUIT_BREAKERS.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    // How long to wait before sending a request to the host, 0 when the circuit is closed
+    synchronized long delayNanos() {
+        return Math.max(0, openUntil - System.nanoTime());
+    }
+
+    // Park the calling thread while the circuit is open, a failure meanwhile keeps it open longer
+    void awaitClosed() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = delayNanos()) > 0) {
+            LockSupport.parkNanos(this, waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            Utilities.Log(MODULE_NAME, "opening the circuit of " + host + " after "
+                    + consecutiveFailures + " consecutive failures");
+            openUntil = System.nanoTime() + OPEN_DURATION;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Tunes the number of concurrent connections while the download runs ("auto" MAX-CONCURRENT-CONNECTIONS).
+ *
+ * Every SAMPLE_INTERVAL the aggregate throughput is measured. While adding connections keeps improving it by more
+ * than IMPROVEMENT_THRESHOLD, another STEP connections are started. Once it flattens, the extra connections are
+ * retired back to the best count found and the tuner settles. Failed or refused requests make it retire a connection
+ * and hold there, till a sample without failures opens the tuning again from the reduced count.
+ * It settles right away when the writers are backpressured, as the disk rather than the network is the limit.
+ *
+ * The best count of every host is remembered in a connections file shared by all the downloads, and used as the
+ * starting point of the next download from that host. The file is replaced atomically, so a crash while saving
+ * leaves the previous counts. With several mirrors the throughput of all of them is measured together,
+ * so the tuner starts from the sum of their counts and does not save the count it settles on.
+ */
+class ConnectionTuner implements Runnable {
+    private static final String MODULE_NAME = "ConnectionTuner";
+    private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+    private static final long POLL_INTERVAL = 100;
+    private static final double IMPROVEMENT_THRESHOLD = 0.05;
+    private static final int STEP = 2;
+    private static final int MIN_CONNECTIONS = 1;
+    private static final int DEFAULT_INITIAL_CONNECTIONS = 2;
+    private final List<String> hosts;
+    private final String connectionsFilename;
+    private final RangeScheduler rangeScheduler;
+    private final Supplier<Runnable> getterFactory;
+    private final ThreadFactory threadFactory;
+    private final int maxConnections;
+    private final AtomicInteger numberOfRunningGetters;
+    private int numberOfConnections;
+
+    ConnectionTuner(
+            MirrorSelector mirrorSelector,
+            String connectionsFilename,
+            RangeScheduler rangeScheduler,
+            Supplier<Runnable> getterFactory,
+            ThreadFactory threadFactory,
+            int maxConnections) {
+        this.hosts = new ArrayList<>();
+        for (MirrorSelector.Mirror mirror : mirrorSelector.getMirrors()) {
+            hosts.add(mirror.getHost());
+        }
+        this.connectionsFilename = connectionsFilename;
+        this.rangeScheduler = rangeScheduler;
+        this.getterFactory = getterFactory;
+        this.threadFactory = threadFactory;
+        this.maxConnections = maxConnections;
+        this.numberOfRunningGetters = new AtomicInteger(0);
+        this.numberOfConnections = 0;
+    }
+
+    @Override
+    public void run() {
+        ExecutorService gettersExecutor = Executors.newCachedThreadPool(threadFactory);
+        int bestNumberOfConnections = Math.min(maxConnections, loadBestNumberOfConnections());
+        double bestThroughput = 0;
+        boolean settled = false;
+        boolean backedOff = false;
+        long lastDownloadedBytes = rangeScheduler.getDownloadedBytes();
+        int lastNumberOfFailures = rangeScheduler.getNumberOfFailures();
+        long lastSampleTime = System.nanoTime();
+
+        Utilities.Log(MODULE_NAME, "starting with " + bestNumberOfConnections + " connections to " + hosts);
+        startGetters(gettersExecutor, bestNumberOfConnections);
+
+        try {
+            while (numberOfRunningGetters.get() > 0) {
+                Thread.sleep(POLL_INTERVAL);
+
+                long now = System.nanoTime();
+                if (now - lastSampleTime < SAMPLE_INTERVAL) {
+                    continue;
+                }
+
+                long downloadedBytes = rangeScheduler.getDownloadedBytes();
+                int numberOfFailures = rangeScheduler.getNumberOfFailures();
+                double throughput = (downloadedBytes - lastDownloadedBytes) / ((now - lastSampleTime) / 1e9);
+                boolean failed = numberOfFailures > lastNumberOfFailures;
+                lastDownloadedBytes = downloadedBytes;
+                lastNumberOfFailures = numberOfFailures;
+                lastSampleTime = now;
+                Utilities.Log(MODULE_NAME, numberOfConnections + " connections - " + (long) throughput + " Bps");
+
+                if (failed && numberOfConnections > MIN_CONNECTIONS) {
+                    // the server starts refusing, back off and stay there till it stops
+                    retireGetters(1);
+                    bestNumberOfConnections = numberOfConnections;
+                    settled = true;
+                    backedOff = true;
+                } else {
+                    if (backedOff && !failed) {
+                        // the server accepts the connections again, tune from the reduced count
+                        backedOff = false;
+                        settled = false;
+                        bestThroughput = 0;
+                    }
+
+                    if (!settled) {
+                        if (rangeScheduler.isBackpressured()) {
+                            // the writers are the bottleneck, more connections would only wait for them
+                            bestNumberOfConnections = numberOfConnections;
+                            settled = true;
+                        } else if (throughput > bestThroughput * (1 + IMPROVEMENT_THRESHOLD)) {
+                            bestThroughput = throughput;
+                            bestNumberOfConnections = numberOfConnections;
+                            startGetters(gettersExecutor, Math.min(STEP, maxConnections - numberOfConnections));
+                        } else {
+                            // throughput flattened, go back to the best count found
+                            retireGetters(numberOfConnections - bestNumberOfConnections);
+                            settled = true;
+                        }
+                    }
+                }
+            }
+
+            gettersExecutor.shutdown();
+            gettersExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted Exception while tuning connections " + e.getMessage());
+            gettersExecutor.shutdownNow();
+        }
+
+        Utilities.Log(MODULE_NAME, "best number of connections to " + hosts + " is " + bestNumberOfConnections);
+        // The count of several mirrors together says nothing about each of them
+        if (hosts.size() == 1) {
+            saveBestNumberOfConnections(bestNumberOfConnections);
+        }
+    }
+
+    private void startGetters(ExecutorService gettersExecutor, int numberOfGetters) {
+        for (int i = 0; i < numberOfGetters; i++) {
+            Runnable getter = getterFactory.get();
+            numberOfRunningGetters.incrementAndGet();
+            numberOfConnections++;
+            gettersExecutor.execute(() -> {
+                try {
+                    getter.run();
+                } finally {
+                    numberOfRunningGetters.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private void retireGetters(int numberOfGetters) {
+        if (numberOfGetters > 0) {
+            numberOfConnections -= numberOfGetters;
+            rangeScheduler.retireGetters(numberOfGetters);
+        }
+    }
+
+    // The sum of the best counts of the hosts, as every host gets its share of the connections
+    private int loadBestNumberOfConnections() {
+        Properties connections = loadConnectionsFile();
+        int bestNumberOfConnections = 0;
+        for (String host : hosts) {
+            try {
+                bestNumberOfConnections += Math.max(MIN_CONNECTIONS, Integer.parseInt(
+                        connections.getProperty(host, Integer.toString(DEFAULT_INITIAL_CONNECTIONS))));
+            } catch (NumberFormatException e) {
+                bestNumberOfConnections += DEFAULT_INITIAL_CONNECTIONS;
+            }
+        }
+
+        return bestNumberOfConnections;
+    }
+
+    // Write a temporary file next to the connections file and move it over it
+    private void saveBestNumberOfConnections(int numberOfConnections) {
+        Properties connections = loadConnectionsFile();
+        connections.setProperty(hosts.get(0), Integer.toString(numberOfConnections));
+
+        Path connectionsPath = new File(connectionsFilename).getAbsoluteFile().toPath();
+        Path temporaryPath = null;
+        try {
+            Files.createDirectories(connectionsPath.getParent());
+            temporaryPath = Files.createTempFile(connectionsPath.getParent(),
+                    connectionsPath.getFileName().toString(), ".tmp");
+            try (OutputStream connectionsOut = Files.newOutputStream(temporaryPath)) {
+                connections.store(connectionsOut, "Best number of connections per host");
+            }
+            Files.move(temporaryPath, connectionsPath,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Utilities.Log(MODULE_NAME, "There was an error while saving " + connectionsFilename + " " + e.getMessage());
+            try {
+                if (temporaryPath != null) {
+                    Files.deleteIfExists(temporaryPath);
+                }
+            } catch (IOException deleteException) {
+                Utilities.Log(MODULE_NAME, "Could not delete " + temporaryPath + " " + deleteException.getMessage());
+            }
+        }
+    }
+
+    private Properties loadConnectionsFile() {
+        Properties connections = new Properties();
+        File connectionsFile = new File(connectionsFilename);
+
+        if (connectionsFile.exists()) {
+            try (InputStream connectionsIn = new FileInputStream(connectionsFile)) {
+                connections.load(connectionsIn);
+            } catch (IOException e) {
+                Utilities.Log(MODULE_NAME, "There was an error while reading " + connectionsFilename + " " + e.getMessage());
+            }
+        }
+
+        return connections;
+    }
+}
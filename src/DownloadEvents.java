@@ -0,0 +1,126 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JDK Flight Recorder events of a download, recorded when a recording is running, for example with
+ * java -XX:StartFlightRecording=filename=idcdm.jfr IdcDm URL
+ *
+ * The samples are committed by the DownloadMetrics sampler thread. The checkpoint events time every checkpoint
+ * of a FileWriter and every metadata snapshot, which happen about once a second, so they stay off the hot path.
+ */
+final class DownloadEvents {
+
+    private DownloadEvents() {
+    }
+
+    @Name("idcdm.DownloadSample")
+    @Label("Download Sample")
+    @Category("IdcDm")
+    @Description("The state of the download over the last sampling interval")
+    @StackTrace(false)
+    static class Sample extends Event {
+        @Label("Downloaded")
+        @DataAmount
+        long downloadedBytes;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long bytesPerSecond;
+
+        @Label("Time Left")
+        @Timespan(Timespan.SECONDS)
+        long etaSeconds;
+
+        @Label("Connections")
+        int connections;
+
+        @Label("Retries")
+        long retries;
+
+        @Label("Failed Requests")
+        long failures;
+
+        @Label("Buffered")
+        @DataAmount
+        long bufferedBytes;
+
+        @Label("Buffer Budget")
+        @DataAmount
+        long bufferBudgetBytes;
+
+        @Label("Blocked on Tokens")
+        @Timespan
+        long tokenBlockedNanos;
+
+        @Label("Writes")
+        long writes;
+
+        @Label("Write Latency p50")
+        @Timespan
+        long writeLatencyP50;
+
+        @Label("Write Latency p99")
+        @Timespan
+        long writeLatencyP99;
+    }
+
+    @Name("idcdm.ConnectionSample")
+    @Label("Connection Sample")
+    @Category("IdcDm")
+    @Description("The throughput of a single connection over the last sampling interval")
+    @StackTrace(false)
+    static class ConnectionSample extends Event {
+        @Label("Connection")
+        String connection;
+
+        @Label("Received")
+        @DataAmount
+        long receivedBytes;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long bytesPerSecond;
+    }
+
+    @Name("idcdm.Checkpoint")
+    @Label("Writer Checkpoint")
+    @Category("IdcDm")
+    @Description("A FileWriter forced its data and committed its range journal")
+    @StackTrace(false)
+    static class Checkpoint extends Event {
+        @Label("Journal")
+        String journal;
+
+        @Label("Forced")
+        boolean forced;
+
+        @Label("Ranges")
+        int ranges;
+    }
+
+    @Name("idcdm.MetadataSnapshot")
+    @Label("Metadata Snapshot")
+    @Category("IdcDm")
+    @Description("The whole metadata was written into the metadata file")
+    @StackTrace(false)
+    static class MetadataSnapshot extends Event {
+        @Label("Metadata File")
+        String metadataFile;
+
+        @Label("Downloaded Ranges")
+        int ranges;
+    }
+}
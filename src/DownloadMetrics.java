@@ -0,0 +1,402 @@
+import Utill.Utilities;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live metrics of a download, sampled off the hot path.
+ *
+ * The download pipeline only counts: every connection its received bytes, the RangeScheduler retries and failed
+ * requests, the TokenBucket the time its takers were blocked, and the StripedWriters the written and buffered bytes
+ * and the latencies of the writes, checkpoints and metadata snapshots. A sampler thread reads all the counters
+ * every interval, turns them into rates and interval percentiles, and
+ * - prints the progress with the throughput and the time left whenever the percentage grows
+ * - keeps the sample for the DownloadMetricsMBean, registered in JMX as idcdm:type=DownloadMetrics
+ * - commits it as DownloadEvents to a running flight recording
+ *
+ * Every download attempt has its own StripedWriters and RangeScheduler. They are all kept, so the totals cover
+ * the whole download.
+ */
+class DownloadMetrics implements DownloadMetricsMBean {
+    private static final String MODULE_NAME = "DownloadMetrics";
+    private static final String OBJECT_NAME = "idcdm:type=DownloadMetrics";
+    // The weight of the last interval in the throughput the time left is estimated with
+    private static final double RATE_SMOOTHING = 0.3;
+    private final long fileSize;
+    private final long initialBytes;
+    private final long sampleIntervalNanos;
+    private final long initialTokenBlockedNanos;
+    private final AtomicInteger nextConnectionId;
+    private final Set<Connection> connections;
+    private final List<StripedWriters> attemptWriters;
+    private final List<RangeScheduler> attemptSchedulers;
+    private volatile Sample lastSample;
+    private ObjectName objectName;
+    private Thread samplerThread;
+    // Only used by the sampler, and by stop once the sampler is gone
+    private long lastSampleTime;
+    private long lastWrittenBytes;
+    private long lastTokenBlockedNanos;
+    private long[] lastWriteLatencyCounts;
+    private double smoothedBytesPerSecond;
+    private int printedPercentage;
+
+    DownloadMetrics(long fileSize, long initialBytes, long sampleIntervalNanos) {
+        this.fileSize = fileSize;
+        this.initialBytes = initialBytes;
+        this.sampleIntervalNanos = sampleIntervalNanos;
+        this.initialTokenBlockedNanos = TokenBucket.getBlockedNanos();
+        this.nextConnectionId = new AtomicInteger(0);
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.attemptWriters = new CopyOnWriteArrayList<>();
+        this.attemptSchedulers = new CopyOnWriteArrayList<>();
+        this.lastSample = new Sample();
+        this.lastSample.downloadedBytes = initialBytes;
+        this.lastSample.etaSeconds = -1;
+        this.lastSampleTime = System.nanoTime();
+        this.lastWrittenBytes = 0;
+        this.lastTokenBlockedNanos = initialTokenBlockedNanos;
+        this.lastWriteLatencyCounts = new long[LatencyHistogram.BUCKETS];
+        this.smoothedBytesPerSecond = -1;
+        this.printedPercentage = (int) (initialBytes * 100 / fileSize);
+    }
+
+    // Register the MBean and start sampling
+    void start() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(new StandardMBean(this, DownloadMetricsMBean.class), name);
+            objectName = name;
+        } catch (JMException e) {
+            Utilities.Log(MODULE_NAME, "could not register the metrics in JMX " + e.getMessage());
+        }
+
+        samplerThread = new Thread(this::sampleUntilStopped, "DownloadMetrics");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+    }
+
+    // Take a last sample, log the totals and unregister the MBean
+    void stop() throws InterruptedException {
+        if (samplerThread != null) {
+            samplerThread.interrupt();
+            samplerThread.join();
+        }
+        Sample sample = sample();
+
+        Utilities.Log(MODULE_NAME, "downloaded " + sample.downloadedBytes + " of " + fileSize + " bytes, "
+                + sample.retries + " retries, " + sample.failures + " failed requests, blocked on tokens "
+                + TimeUnit.NANOSECONDS.toMillis(sample.tokenBlockedNanos) + " ms, "
+                + sample.writes + " writes, " + sample.checkpoints + " checkpoints in "
+                + TimeUnit.NANOSECONDS.toMillis(sample.checkpointNanos) + " ms, "
+                + sample.snapshots + " metadata snapshots in "
+                + TimeUnit.NANOSECONDS.toMillis(sample.snapshotNanos) + " ms");
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                Utilities.Log(MODULE_NAME, "could not unregister the metrics from JMX " + e.getMessage());
+            }
+        }
+    }
+
+    // Sample the writers of a new download attempt too
+    void attachWriters(StripedWriters stripedWriters) {
+        attemptWriters.add(stripedWriters);
+    }
+
+    // Sample the scheduler of a new download attempt too
+    void attachScheduler(RangeScheduler rangeScheduler) {
+        attemptSchedulers.add(rangeScheduler);
+    }
+
+    // A new connection to count the received bytes of, named after the kind of its getter
+    Connection openConnection(String kind) {
+        Connection connection = new Connection(kind + "-" + nextConnectionId.incrementAndGet());
+        connections.add(connection);
+        return connection;
+    }
+
+    void closeConnection(Connection connection) {
+        connections.remove(connection);
+    }
+
+    private void sampleUntilStopped() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.NANOSECONDS.sleep(sampleIntervalNanos);
+                sample();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    // Read all the counters, keep the sample, print the progress and record the events
+    private synchronized Sample sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastSampleTime) / 1e9);
+        Sample sample = new Sample();
+
+        long writtenBytes = 0;
+        long bufferBudget = 0;
+        long[] writeLatencyCounts = new long[LatencyHistogram.BUCKETS];
+        long[] checkpointCounts = new long[LatencyHistogram.BUCKETS];
+        long[] snapshotCounts = new long[LatencyHistogram.BUCKETS];
+        for (StripedWriters stripedWriters : attemptWriters) {
+            writtenBytes += stripedWriters.getWrittenBytes();
+            sample.bufferedBytes += stripedWriters.getBufferedBytes();
+            bufferBudget = stripedWriters.getBufferBudget(); // of the current attempt
+            stripedWriters.getWriteLatency().addTo(writeLatencyCounts);
+            stripedWriters.getCheckpointLatency().addTo(checkpointCounts);
+            stripedWriters.getSnapshotLatency().addTo(snapshotCounts);
+            sample.checkpointNanos += stripedWriters.getCheckpointLatency().getTotalNanos();
+            sample.snapshotNanos += stripedWriters.getSnapshotLatency().getTotalNanos();
+        }
+        for (RangeScheduler rangeScheduler : attemptSchedulers) {
+            sample.retries += rangeScheduler.getNumberOfRetries();
+            sample.failures += rangeScheduler.getNumberOfFailures();
+        }
+
+        sample.downloadedBytes = Math.min(fileSize, initialBytes + writtenBytes);
+        sample.bufferBudget = bufferBudget;
+        sample.bytesPerSecond = (long) ((writtenBytes - lastWrittenBytes) / seconds);
+        smoothedBytesPerSecond = smoothedBytesPerSecond < 0 ? sample.bytesPerSecond
+                : RATE_SMOOTHING * sample.bytesPerSecond + (1 - RATE_SMOOTHING) * smoothedBytesPerSecond;
+        sample.etaSeconds = smoothedBytesPerSecond >= 1
+                ? (long) Math.ceil((fileSize - sample.downloadedBytes) / smoothedBytesPerSecond) : -1;
+
+        long tokenBlockedNanos = TokenBucket.getBlockedNanos();
+        sample.tokenBlockedNanos = tokenBlockedNanos - initialTokenBlockedNanos;
+        long intervalTokenBlockedNanos = tokenBlockedNanos - lastTokenBlockedNanos;
+
+        // The percentiles of the writes of this interval only
+        long[] intervalWriteCounts = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            intervalWriteCounts[i] = writeLatencyCounts[i] - lastWriteLatencyCounts[i];
+            sample.writes += writeLatencyCounts[i];
+            sample.checkpoints += checkpointCounts[i];
+            sample.snapshots += snapshotCounts[i];
+        }
+        sample.writeLatencyP50Nanos = LatencyHistogram.percentileNanos(intervalWriteCounts, 0.5);
+        sample.writeLatencyP99Nanos = LatencyHistogram.percentileNanos(intervalWriteCounts, 0.99);
+
+        List<Connection> openConnections = List.copyOf(connections);
+        sample.connectionBytesPerSecond = new long[openConnections.size()];
+        for (int i = 0; i < openConnections.size(); i++) {
+            Connection connection = openConnections.get(i);
+            long receivedBytes = connection.receivedBytes.sum();
+            sample.connectionBytesPerSecond[i] = (long) ((receivedBytes - connection.sampledBytes) / seconds);
+            recordConnectionEvent(connection, receivedBytes - connection.sampledBytes,
+                    sample.connectionBytesPerSecond[i]);
+            connection.sampledBytes = receivedBytes;
+        }
+
+        lastSampleTime = now;
+        lastWrittenBytes = writtenBytes;
+        lastTokenBlockedNanos = tokenBlockedNanos;
+        lastWriteLatencyCounts = writeLatencyCounts;
+        lastSample = sample;
+
+        printProgress(sample);
+        recordSampleEvent(sample, intervalTokenBlockedNanos);
+        return sample;
+    }
+
+    // Print the percentage whenever it grows, 100% only once every byte was written
+    private void printProgress(Sample sample) {
+        int percentage = (int) (sample.downloadedBytes * 100 / fileSize);
+        if (percentage <= printedPercentage) {
+            return;
+        }
+        printedPercentage = percentage;
+
+        StringBuilder progress = new StringBuilder("Downloaded " + percentage + "%");
+        if (percentage < 100 && sample.etaSeconds >= 0) {
+            progress.append(String.format(" - %.1f MB/s, %d:%02d left",
+                    smoothedBytesPerSecond / (1024 * 1024), sample.etaSeconds / 60, sample.etaSeconds % 60));
+        }
+        System.err.println(progress);
+    }
+
+    private void recordSampleEvent(Sample sample, long intervalTokenBlockedNanos) {
+        DownloadEvents.Sample event = new DownloadEvents.Sample();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.downloadedBytes = sample.downloadedBytes;
+        event.fileSize = fileSize;
+        event.bytesPerSecond = sample.bytesPerSecond;
+        event.etaSeconds = sample.etaSeconds;
+        event.connections = sample.connectionBytesPerSecond.length;
+        event.retries = sample.retries;
+        event.failures = sample.failures;
+        event.bufferedBytes = sample.bufferedBytes;
+        event.bufferBudgetBytes = sample.bufferBudget;
+        event.tokenBlockedNanos = intervalTokenBlockedNanos;
+        event.writes = sample.writes;
+        event.writeLatencyP50 = sample.writeLatencyP50Nanos;
+        event.writeLatencyP99 = sample.writeLatencyP99Nanos;
+        event.commit();
+    }
+
+    private static void recordConnectionEvent(Connection connection, long receivedBytes, long bytesPerSecond) {
+        DownloadEvents.ConnectionSample event = new DownloadEvents.ConnectionSample();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.connection = connection.name;
+        event.receivedBytes = receivedBytes;
+        event.bytesPerSecond = bytesPerSecond;
+        event.commit();
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return lastSample.downloadedBytes;
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return lastSample.bytesPerSecond;
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        return lastSample.etaSeconds;
+    }
+
+    @Override
+    public int getConnections() {
+        return lastSample.connectionBytesPerSecond.length;
+    }
+
+    @Override
+    public long[] getConnectionBytesPerSecond() {
+        return lastSample.connectionBytesPerSecond.clone();
+    }
+
+    @Override
+    public long getRetries() {
+        return lastSample.retries;
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return lastSample.failures;
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return lastSample.bufferedBytes;
+    }
+
+    @Override
+    public int getBufferOccupancyPercent() {
+        Sample sample = lastSample;
+        return sample.bufferBudget > 0 ? (int) (sample.bufferedBytes * 100 / sample.bufferBudget) : 0;
+    }
+
+    @Override
+    public long getTokenBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSample.tokenBlockedNanos);
+    }
+
+    @Override
+    public long getWrites() {
+        return lastSample.writes;
+    }
+
+    @Override
+    public long getWriteLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastSample.writeLatencyP50Nanos);
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastSample.writeLatencyP99Nanos);
+    }
+
+    @Override
+    public long getCheckpoints() {
+        return lastSample.checkpoints;
+    }
+
+    @Override
+    public long getCheckpointMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSample.checkpointNanos);
+    }
+
+    @Override
+    public long getMetadataSnapshots() {
+        return lastSample.snapshots;
+    }
+
+    @Override
+    public long getMetadataSnapshotMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSample.snapshotNanos);
+    }
+
+    /**
+     * The received bytes of a single connection, added by its getter and read by the sampler.
+     */
+    static class Connection {
+        private final String name;
+        private final LongAdder receivedBytes;
+        private long sampledBytes; // only used by the sampler
+
+        Connection(String name) {
+            this.name = name;
+            this.receivedBytes = new LongAdder();
+            this.sampledBytes = 0;
+        }
+
+        void addReceivedBytes(long bytes) {
+            receivedBytes.add(bytes);
+        }
+    }
+
+    /**
+     * The metrics of one sampling interval. Rates and percentiles are of the interval, the rest are totals.
+     */
+    private static class Sample {
+        private long downloadedBytes;
+        private long bytesPerSecond;
+        private long etaSeconds;
+        private long[] connectionBytesPerSecond = new long[0];
+        private long retries;
+        private long failures;
+        private long bufferedBytes;
+        private long bufferBudget;
+        private long tokenBlockedNanos;
+        private long writes;
+        private long writeLatencyP50Nanos;
+        private long writeLatencyP99Nanos;
+        private long checkpoints;
+        private long checkpointNanos;
+        private long snapshots;
+        private long snapshotNanos;
+    }
+}
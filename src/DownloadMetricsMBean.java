@@ -0,0 +1,45 @@
+/**
+ * The attributes of the DownloadMetrics in JMX, as of its last sample.
+ *
+ * Rates and latencies are those of the last sampling interval, counts and times are totals of the download.
+ */
+public interface DownloadMetricsMBean {
+
+    long getFileSize();
+
+    long getDownloadedBytes();
+
+    long getBytesPerSecond();
+
+    // -1 while there is no throughput to estimate with
+    long getEtaSeconds();
+
+    int getConnections();
+
+    // The throughput of every open connection
+    long[] getConnectionBytesPerSecond();
+
+    long getRetries();
+
+    long getFailedRequests();
+
+    long getBufferedBytes();
+
+    int getBufferOccupancyPercent();
+
+    long getTokenBlockedMillis();
+
+    long getWrites();
+
+    long getWriteLatencyP50Micros();
+
+    long getWriteLatencyP99Micros();
+
+    long getCheckpoints();
+
+    long getCheckpointMillis();
+
+    long getMetadataSnapshots();
+
+    long getMetadataSnapshotMillis();
+}
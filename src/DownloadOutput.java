@@ -0,0 +1,15 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The storage of the downloaded .tmp file the FileWriter writes chunks into.
+ */
+interface DownloadOutput extends Closeable {
+
+    // Write the given contiguous chunks, starting at the offset of the first one. Returns the written bytes
+    long write(List<Chunk> chunks) throws IOException;
+
+    // Force everything written so far to the storage device
+    void force() throws IOException;
+}
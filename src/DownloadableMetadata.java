@@ -1,37 +1,54 @@
 import Utill.Utilities;
 
 import java.io.File;
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 /**
- * Describes a file's metadata: URL, file name, size, and which parts already downloaded to disk.
+ * Describes a file's metadata: URL, ETag, file name, size, and which parts already downloaded to disk.
  *
  * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk.
  * When constructing a new metadata object, we first check the disk to load existing metadata.
  *
  * CHALLENGE: try to avoid metadata disk footprint of O(n) in the average case
  * HINT: avoid the obvious bitmap solution, and think about ranges...
+ *
+ * The downloaded ranges are kept coalesced in a map sorted by their start, so adding a range
+ * costs O(log n), and the number of downloaded bytes is kept as a running counter.
+ *
+ * The metadata also keeps the digest of every downloaded block of BlockHasher.BLOCK_SIZE bytes,
+ * so the blocks of a previous attempt can be verified on resume.
+ *
+ * Snapshots of the metadata are stored in the binary MetadataFormat.
  */
-class DownloadableMetadata implements Serializable {
-    private static final long serialVersionUID = 1L;
+class DownloadableMetadata {
     private final String metadataFilename;
     private static final String MODULE_NAME="DownloadableMetadata";
     private String filename;
-    private ArrayList<Range> m_downLoadedRanges;
-    private ArrayList<Range> m_missingRanges;
+    private String m_url;
+    private String m_eTag;
+    // start -> end of every downloaded range, no two ranges touch or overlap
+    private TreeMap<Long, Long> m_downLoadedRanges;
     private long m_sizeInBytes;
-    private AtomicBoolean m_updateFlag;
+    // the size of the file on the server the ranges were downloaded from, -1 when unknown
+    private long m_fileSize;
+    // block index -> digest of the block, only for fully downloaded blocks
+    private TreeMap<Long, byte[]> m_blockDigests;
 
     DownloadableMetadata(String url) {
 
         this.filename = getName(url);
+        this.m_url = url;
         this.metadataFilename = getMetadataName(filename);
-        this.m_downLoadedRanges = new ArrayList<>();
-        this.m_missingRanges = null;
+        this.m_downLoadedRanges = new TreeMap<>();
         this.m_sizeInBytes = 0;
-        this.m_updateFlag = new AtomicBoolean(false);
+        this.m_fileSize = -1;
+        this.m_blockDigests = new TreeMap<>();
     }
 
     private static String getMetadataName(String filename) {
@@ -42,53 +59,149 @@ class DownloadableMetadata implements Serializable {
         return path.substring(path.lastIndexOf('/') + 1, path.length());
     }
 
-    private void addRangeToList(Range range){
-        int unionResponseCode;
-        Range currentRange;
+    // Add the range, coalescing it with every range it touches or overlaps
+    void addRange(Range range) {
+        long start = range.getStart();
+        long end = range.getEnd();
 
-        // adding first range
-        if (m_downLoadedRanges.size() == 0) {
-            m_downLoadedRanges.add(range);
+        if (start >= end) {
             return;
         }
 
-        for (int i = 0; i < m_downLoadedRanges.size(); i++) {
-            currentRange = m_downLoadedRanges.get(i);
-            Range.UnionResponse unionResponse = Range.unionRanges(currentRange, range);
-            unionResponseCode = unionResponse.get_res();
-
-            switch (unionResponseCode) {
-                // range is bigger than current
-                case 1:
-                    // last index of ranges. add range as last range
-                    if (i == m_downLoadedRanges.size() - 1) {
-                        m_downLoadedRanges.add(range);
-                        return;
-                    }
-                    break;
-                // current Range is bigger than range
-                case -1:
-                    m_downLoadedRanges.add(i, range);
-                    return;
-                case 0:
-                    // remove the old range
-                    m_downLoadedRanges.remove(i);
-                    // add the new range
-                    addRangeToList(unionResponse.get_updatedRange());
-                    return;
+        // a range starting before the new one and reaching it
+        Map.Entry<Long, Long> previousRange = m_downLoadedRanges.floorEntry(start);
+        if (previousRange != null && previousRange.getValue() >= start) {
+            if (previousRange.getValue() >= end) {
+                // already downloaded
+                return;
             }
+            start = previousRange.getKey();
+            removeRange(previousRange);
         }
+
+        // ranges starting inside the new one, or right at its end
+        Map.Entry<Long, Long> nextRange;
+        while ((nextRange = m_downLoadedRanges.ceilingEntry(start)) != null && nextRange.getKey() <= end) {
+            end = Math.max(end, nextRange.getValue());
+            removeRange(nextRange);
+        }
+
+        m_downLoadedRanges.put(start, end);
+        m_sizeInBytes += end - start;
     }
 
-    void addRange(Range range) {
-        m_sizeInBytes += range.getLength();
-        addRangeToList(range);
+    // Add a range starting after the end of the last downloaded range, as when loading sorted ranges,
+    // which skips the search for the ranges it touches
+    void appendRange(long start, long end) {
+        Map.Entry<Long, Long> lastRange = m_downLoadedRanges.lastEntry();
+        if (lastRange == null || lastRange.getValue() < start) {
+            putRange(start, end);
+        } else {
+            addRange(new Range(start, end));
+        }
+    }
+
+    // Remove the range from the downloaded ranges, cutting the ranges it overlaps
+    void removeDownloadedRange(Range range) {
+        long start = range.getStart();
+        long end = range.getEnd();
+
+        // a range starting before the removed one and reaching into it
+        Map.Entry<Long, Long> previousRange = m_downLoadedRanges.lowerEntry(start);
+        if (previousRange != null && previousRange.getValue() > start) {
+            removeRange(previousRange);
+            putRange(previousRange.getKey(), start);
+            putRange(end, previousRange.getValue());
+        }
+
+        // ranges starting inside the removed one
+        Map.Entry<Long, Long> nextRange;
+        while ((nextRange = m_downLoadedRanges.ceilingEntry(start)) != null && nextRange.getKey() < end) {
+            removeRange(nextRange);
+            putRange(end, nextRange.getValue());
+        }
+    }
+
+    private void putRange(long start, long end) {
+        if (start < end) {
+            m_downLoadedRanges.put(start, end);
+            m_sizeInBytes += end - start;
+        }
+    }
+
+    private void removeRange(Map.Entry<Long, Long> range) {
+        m_downLoadedRanges.remove(range.getKey());
+        m_sizeInBytes -= range.getValue() - range.getKey();
+    }
+
+    // Check whether every byte of the range was downloaded
+    boolean isDownloaded(Range range) {
+        Map.Entry<Long, Long> downloadedRange = m_downLoadedRanges.floorEntry(range.getStart());
+        return downloadedRange != null && downloadedRange.getValue() >= range.getEnd();
+    }
+
+    // The downloaded ranges, as a copy which is safe to read while this metadata changes
+    TreeMap<Long, Long> copyDownloadedRanges() {
+        return new TreeMap<>(m_downLoadedRanges);
+    }
+
+    // A read only view of the downloaded ranges, start -> end
+    NavigableMap<Long, Long> getDownloadedRanges() {
+        return Collections.unmodifiableNavigableMap(m_downLoadedRanges);
+    }
+
+    // A read only view of the block digests, block index -> digest
+    NavigableMap<Long, byte[]> getBlockDigests() {
+        return Collections.unmodifiableNavigableMap(m_blockDigests);
+    }
+
+    void putBlockDigest(long block, byte[] digest) {
+        m_blockDigests.put(block, digest);
+    }
+
+    byte[] getBlockDigest(long block) {
+        return m_blockDigests.get(block);
+    }
+
+    void removeBlockDigest(long block) {
+        m_blockDigests.remove(block);
+    }
+
+    // The indexes of the blocks which have a digest
+    ArrayList<Long> getDigestedBlocks() {
+        return new ArrayList<>(m_blockDigests.keySet());
+    }
+
+    // The number of separate downloaded ranges, the fragmentation of the download
+    int getNumberOfRanges() {
+        return m_downLoadedRanges.size();
     }
 
     long get_sizeInBytes() {
         return m_sizeInBytes;
     }
 
+    String getUrl() {
+        return m_url;
+    }
+
+    // The ETag of the file the downloaded ranges belong to, null when the server sent none
+    String getETag() {
+        return m_eTag;
+    }
+
+    void setETag(String eTag) {
+        this.m_eTag = eTag;
+    }
+
+    long getFileSize() {
+        return m_fileSize;
+    }
+
+    void setFileSize(long fileSize) {
+        this.m_fileSize = fileSize;
+    }
+
     String getFilename() {
         return filename;
     }
@@ -97,16 +210,24 @@ class DownloadableMetadata implements Serializable {
         return metadataFilename;
     }
 
+    // The journal of the given writer stripe, the first stripe keeps the plain journal name
+    String getJournalFilename(int stripe) {
+        String journalFilename = metadataFilename + ".journal";
+        return stripe == 0 ? journalFilename : journalFilename + "." + stripe;
+    }
+
+    // The journals of all the stripes, of this or of a previous download attempt
+    File[] getJournalFiles() {
+        String journalFilename = new File(getJournalFilename(0)).getName();
+        File directory = new File(getJournalFilename(0)).getAbsoluteFile().getParentFile();
+        File[] journalFiles = directory.listFiles((dir, name) ->
+                name.equals(journalFilename) || name.startsWith(journalFilename + "."));
+
+        return journalFiles != null ? journalFiles : new File[0];
+    }
+
     boolean isCompleted() {
-        // Return true without computing missing ranges in the case
-        // Missing Ranges was already computed.
-        long total = 0;
-        for (Range range:
-                m_downLoadedRanges
-                ) {
-            total += range.getLength();
-        }
-        return total == IdcDm.fileSize;
+        return m_sizeInBytes == IdcDm.fileSize;
     }
 
     void delete() {
@@ -118,57 +239,82 @@ class DownloadableMetadata implements Serializable {
                 Utilities.Log(MODULE_NAME,"Delete operation has failed.");
             }
 
+            for (File journalFile : getJournalFiles()) {
+                if (!journalFile.delete()) {
+                    Utilities.Log(MODULE_NAME,"Delete operation of " + journalFile.getName() + " has failed.");
+                }
+            }
+
         } catch (Exception e) {
             System.err.println("There was an error while deleting metadata file " + e.getMessage());
         }
     }
 
     ArrayList<Range> getMissingRanges() {
+        Utilities.Log(MODULE_NAME,"Computing Missing Ranges");
+        ArrayList<Range> missingRanges = new ArrayList<>();
+        Iterator<Range> gaps = missingRangesIterator(IdcDm.fileSize);
 
-        ArrayList<Range> ranges;
-        long fileSize = IdcDm.fileSize;
-        long indexOfLastByteInTheFile = fileSize;
-        // if no metadata exist we initiate the one first range as the full file size
-        if (m_downLoadedRanges.size() == 0) {
-            ranges = new ArrayList<>();
-            ranges.add(new Range(0L, indexOfLastByteInTheFile));
-            m_missingRanges = ranges;
+        while (gaps.hasNext()) {
+            missingRanges.add(gaps.next());
         }
-        else if(!m_updateFlag.get()){
-            Utilities.Log(MODULE_NAME,"Computing Missing Ranges");
-            m_missingRanges = new ArrayList<>();
-            Range currentMissingRange;
-            long lastDownloadedByte;
-            int index;
-
-            if(m_downLoadedRanges.size() == 1 && m_downLoadedRanges.get(0).getStart() > 0)
-            {
-                currentMissingRange = new Range(0L,m_downLoadedRanges.get(0).getStart());
-                m_missingRanges.add(currentMissingRange);
-            }
 
-            // find missing ranges
-            for (index = 1; index < m_downLoadedRanges.size(); index++) {
-                // holding both the range in the current index and the one before it
-                // take into count that the range array list is sorted
-                if (m_downLoadedRanges.get(index).getStart() - m_downLoadedRanges.get(index - 1).getEnd() > 1) {
-                    currentMissingRange = new Range(
-                            m_downLoadedRanges.get(index - 1).getEnd(),
-                            m_downLoadedRanges.get(index).getStart());
-                    m_missingRanges.add(currentMissingRange);
+        return missingRanges;
+    }
+
+    // Iterate over the gaps between the downloaded ranges, up to the given file size
+    Iterator<Range> missingRangesIterator(long fileSize) {
+        return new GapIterator(m_downLoadedRanges.entrySet().iterator(), fileSize);
+    }
+
+    private static class GapIterator implements Iterator<Range> {
+        private final Iterator<Map.Entry<Long, Long>> downloadedRanges;
+        private final long fileSize;
+        private long gapStart;
+        private Range nextGap;
+
+        GapIterator(Iterator<Map.Entry<Long, Long>> downloadedRanges, long fileSize) {
+            this.downloadedRanges = downloadedRanges;
+            this.fileSize = fileSize;
+            this.gapStart = 0;
+            this.nextGap = findNextGap();
+        }
+
+        private Range findNextGap() {
+            while (downloadedRanges.hasNext()) {
+                Map.Entry<Long, Long> downloadedRange = downloadedRanges.next();
+                long gapEnd = Math.min(downloadedRange.getKey(), fileSize);
+                Range gap = gapStart < gapEnd ? new Range(gapStart, gapEnd) : null;
+                gapStart = Math.max(gapStart, downloadedRange.getValue());
+                if (gap != null) {
+                    return gap;
                 }
             }
 
-            // get last missing range
-            lastDownloadedByte = m_downLoadedRanges.get(index - 1).getEnd();
-            if (lastDownloadedByte != indexOfLastByteInTheFile) {
-                currentMissingRange = new Range(
-                        lastDownloadedByte,
-                        indexOfLastByteInTheFile);
-                m_missingRanges.add(currentMissingRange);
+            // the gap after the last downloaded range
+            if (gapStart < fileSize) {
+                Range gap = new Range(gapStart, fileSize);
+                gapStart = fileSize;
+                return gap;
             }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextGap != null;
+        }
+
+        @Override
+        public Range next() {
+            if (nextGap == null) {
+                throw new NoSuchElementException();
+            }
+
+            Range gap = nextGap;
+            nextGap = findNextGap();
+            return gap;
         }
-        m_updateFlag.set(false);
-        return m_missingRanges;
     }
 }
@@ -1,116 +1,239 @@
 import Utill.Utilities;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This class takes chunks from the queue, writes them to disk and updates the file's metadata.
+ * This class takes chunks from its ChunkRing, writes them to disk and updates the file's metadata.
  *
  * NOTE: make sure that the file interface you choose writes every update to the file's content or metadata
  * synchronously to the underlying storage device.
+ *
+ * Chunks are drained from the ring in batches and neighbouring chunks are written together
+ * into the DownloadOutput chosen by the OutputMode.
+ * How often the written data is forced to the storage device is set by the SyncPolicy.
+ *
+ * Written ranges are appended to a RangeJournal instead of re-serializing the whole metadata per chunk.
+ * The journal is committed at every checkpoint, right after the data it points at was forced,
+ * and compacted into a metadata snapshot once it grows too big.
+ *
+ * A FileWriter writes a single stripe of the file, one of the StripedWriters. Its journal is its own,
+ * and the ranges of every checkpoint are published to the StripedWriters instead of the shared metadata,
+ * together with the digests of the blocks its BlockHasher completed.
  */
 public class FileWriter implements Runnable {
 
     private static final String MODULE_NAME = "FileWriter";
+    static final int MAX_BATCH_SIZE = 256;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
 
-    private final BlockingQueue<Chunk> chunkQueue;
-    private DownloadableMetadata downloadableMetadata;
+    private final StripedWriters stripedWriters;
+    private final DownloadOutput output;
+    private final BlockHasher blockHasher;
+    private final String journalFilename;
+    private final ChunkRing chunkRing;
+    private final ChunkPool chunkPool;
+    private final List<Range> uncheckpointedRanges;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalBytes;
+    private long bytesSinceLastCheckpoint;
+    private long lastCheckpointTime;
 
-
-    FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) {
-        this.chunkQueue = chunkQueue;
-        this.downloadableMetadata = downloadableMetadata;
+    /**
+     * When to force written data and the range journal to the storage device:
+     * CHUNK - after every written batch of chunks
+     * BYTES - after every syncIntervalBytes written bytes, or a second since the last checkpoint
+     * CHECKPOINT - only when the writer is closed at the end of a download attempt,
+     *              the journal is still written every second but left to the operating system,
+     *              so it survives the process being killed but not a power loss.
+     *              Its ranges are published to the metadata snapshot only by a forced checkpoint,
+     *              and a journal due for compaction is forced first
+     */
+    enum SyncPolicy {
+        CHUNK, BYTES, CHECKPOINT
     }
 
-    private void writeChunks() throws IOException {
-        // create tempFile
-        String tempFileName = downloadableMetadata.getFilename() + ".tmp";
-        File tempFile = new File(tempFileName);
-
-        if (!tempFile.createNewFile()) {
-            Utilities.Log(MODULE_NAME, "Temp file exists... ");
-        }
+    /**
+     * How chunks are written into the .tmp file:
+     * CHANNEL - positional FileChannel writes
+     * MAPPED - copies into memory mapped windows of the pre-sized file
+     */
+    enum OutputMode {
+        CHANNEL, MAPPED
+    }
 
-        RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile.getPath(), "rw");
-        Utilities.Log(MODULE_NAME, "open RandomAccessFile for Writing to file: " + tempFileName);
+    FileWriter(
+            StripedWriters stripedWriters,
+            DownloadOutput output,
+            BlockHasher blockHasher,
+            String journalFilename,
+            ChunkRing chunkRing,
+            ChunkPool chunkPool,
+            SyncPolicy syncPolicy,
+            long syncIntervalBytes) {
+        this.stripedWriters = stripedWriters;
+        this.output = output;
+        this.blockHasher = blockHasher;
+        this.journalFilename = journalFilename;
+        this.chunkRing = chunkRing;
+        this.chunkPool = chunkPool;
+        this.uncheckpointedRanges = new ArrayList<>();
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.bytesSinceLastCheckpoint = 0;
+    }
 
-        String metadataFilename = downloadableMetadata.getMetadataFilename();
-        Utilities.Log(MODULE_NAME, "open FileOutputStream for Writing to file: " + metadataFilename);
+    private void writeChunks() throws IOException {
+        RangeJournal rangeJournal = new RangeJournal(journalFilename);
+        Utilities.Log(MODULE_NAME, "open RangeJournal for Writing to file: " + journalFilename);
 
-        // using downloadableMetadata object to get current downloaded percentage
-        long fileSize = IdcDm.fileSize;
-        double progressPercentage = (int) (((double) downloadableMetadata.get_sizeInBytes() / fileSize) * 100);
+        List<Chunk> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean endOfData = false;
+        lastCheckpointTime = System.nanoTime();
         try {
             // Write all available data till the end(represented by offset -1)
-            while (true) {
-                Chunk chunk = chunkQueue.take();
-
-                // stopping while at end of data
-                if (chunk.getOffset() == -1) {
-                    Utilities.Log(MODULE_NAME, "Exiting FileWriter thread, " +
-                            "end of data reached.");
-                    break;
+            while (!endOfData) {
+                batch.clear();
+                // Wake up once in a while even without data, so pending journal records are committed
+                if (chunkRing.drainTo(batch, MAX_BATCH_SIZE, CHECKPOINT_INTERVAL_NANOS) > 0) {
+                    // stopping at end of data, the end marker is always the last chunk put in the ring
+                    Chunk lastChunk = batch.get(batch.size() - 1);
+                    if (lastChunk.getOffset() == -1) {
+                        Utilities.Log(MODULE_NAME, "Exiting FileWriter thread, " +
+                                "end of data reached.");
+                        batch.remove(batch.size() - 1);
+                        endOfData = true;
+                    }
                 }
 
-                long chunkSize = chunk.getSize_in_bytes();
-                writeDataToFile(randomAccessFile, chunk, chunkSize); // Write data to file
-                progressPercentage = getUpdatedProgress(progressPercentage, chunkSize, fileSize); // Show progress
-                addDownloadedRange(chunk, chunkSize); // Add downloaded range in metadata object
-                updateMetadata(metadataFilename); // Update downloaded range in metadata file
-            }
+                if (!batch.isEmpty()) {
+                    long batchSize = writeBatchToFile(rangeJournal, batch); // Write data to file and journal
+                    stripedWriters.addWrittenBytes(batchSize); // Count progress
+                    for (Chunk chunk : batch) {
+                        chunkPool.release(chunk); // The chunk can be reused by the getters
+                    }
+                    chunkRing.release(batch); // So is its room in the byte budget
+                    bytesSinceLastCheckpoint += batchSize;
+                }
 
-            Thread.sleep(500);
-            randomAccessFile.close();
+                if (isCheckpointDue()) {
+                    checkpoint(rangeJournal, syncPolicy != SyncPolicy.CHECKPOINT);
+                }
+            }
         } catch (InterruptedException | IOException e) {
             System.err.println( "There was an exception while writing chunk data " + e.getMessage());
+        } finally {
+            // Always leave a forced journal behind, the StripedWriters compact all of them at the end
+            try {
+                checkpoint(rangeJournal, true);
+            } finally {
+                rangeJournal.close();
+                blockHasher.close();
+            }
         }
     }
 
-    // Update downloaded range in the metadata file
-    private void updateMetadata(String metadataFilename) throws IOException {
-        FileOutputStream metadataFileOut = null;
-        ObjectOutput metadataObjectOut = null;
-
-        try {
-            metadataFileOut = new FileOutputStream(metadataFilename + ".tmp");
-            metadataObjectOut = new ObjectOutputStream(metadataFileOut);
-            metadataObjectOut.writeObject(downloadableMetadata);
-            metadataObjectOut.close();
+    // Check whether the sync policy asks for a checkpoint
+    private boolean isCheckpointDue() {
+        boolean intervalElapsed = System.nanoTime() - lastCheckpointTime >= CHECKPOINT_INTERVAL_NANOS;
 
-            metadataFileOut.close();
+        switch (syncPolicy) {
+            case CHUNK:
+                return bytesSinceLastCheckpoint > 0;
+            case BYTES:
+                return bytesSinceLastCheckpoint >= syncIntervalBytes
+                        || (intervalElapsed && bytesSinceLastCheckpoint > 0);
+            default:
+                return intervalElapsed && bytesSinceLastCheckpoint > 0;
+        }
+    }
 
-            // to handle corrupted temp file - renaming metadata.tmp file to metadata after writing
-            renameTmp(metadataFilename);
+    // Commit the journal, forcing the data it points at first, and publish its ranges once they were forced.
+    // Compact the journal when it grew too big
+    private void checkpoint(RangeJournal rangeJournal, boolean forceToDevice) throws IOException {
+        DownloadEvents.Checkpoint checkpointEvent = new DownloadEvents.Checkpoint();
+        checkpointEvent.begin();
+        long checkpointStart = System.nanoTime();
+        // The snapshot replacing a compacted journal may only hold forced ranges
+        if (rangeJournal.size() >= RangeJournal.COMPACTION_SIZE) {
+            forceToDevice = true;
+        }
+        if (forceToDevice) {
+            output.force();
+        }
+        rangeJournal.commit(forceToDevice);
+        checkpointEvent.ranges = uncheckpointedRanges.size();
+        if (forceToDevice) {
+            stripedWriters.publish(uncheckpointedRanges, blockHasher.takeCompletedDigests());
+            uncheckpointedRanges.clear();
+        }
+        stripedWriters.getCheckpointLatency().record(System.nanoTime() - checkpointStart);
+        checkpointEvent.journal = journalFilename;
+        checkpointEvent.forced = forceToDevice;
+        checkpointEvent.commit();
 
-        } catch (Exception e) {
-            if (metadataObjectOut != null)
-                metadataObjectOut.close();
-            if (metadataFileOut != null)
-                metadataFileOut.close();
+        if (rangeJournal.size() >= RangeJournal.COMPACTION_SIZE) {
+            Utilities.Log(MODULE_NAME, "compacting journal " + journalFilename);
+            stripedWriters.writeMetadataSnapshot();
+            rangeJournal.truncate();
         }
+
+        bytesSinceLastCheckpoint = 0;
+        lastCheckpointTime = System.nanoTime();
     }
 
-    // Add downloaded range in metadata object
-    private void addDownloadedRange(Chunk chunk, long chunkSize) {
-        Range range = new Range(chunk.getOffset(), chunk.getOffset() + chunkSize);
-        downloadableMetadata.addRange(range);
+    // Add downloaded range to the ranges of the next checkpoint and to the journal
+    private void addDownloadedRange(RangeJournal rangeJournal, long offset, long size) {
+        int lastIndex = uncheckpointedRanges.size() - 1;
+        if (lastIndex >= 0 && uncheckpointedRanges.get(lastIndex).getEnd() == offset) {
+            // a connection continues where its previous batch ended
+            long start = uncheckpointedRanges.get(lastIndex).getStart();
+            uncheckpointedRanges.set(lastIndex, new Range(start, offset + size));
+        } else {
+            uncheckpointedRanges.add(new Range(offset, offset + size));
+        }
+        rangeJournal.append(offset, offset + size);
     }
 
-    // Write the given data into the output downloaded file
-    private void writeDataToFile(RandomAccessFile randomAccessFile, Chunk chunk, long chunkSize) throws IOException {
-        long chunkOffset = chunk.getOffset();
-        long chunkEndSet = chunkOffset + chunkSize;
-        byte[] byteArray = chunk.getData();
+    // Write a batch of chunks, gathering neighbouring chunks into a single write and journal record.
+    // Returns the written bytes
+    private long writeBatchToFile(RangeJournal rangeJournal, List<Chunk> batch)
+            throws IOException {
+        long writtenBytes = 0;
+        int runStart = 0;
 
-        randomAccessFile.seek(chunkOffset); // Seek the right data offset
-        Utilities.Log(MODULE_NAME, "Writing chunk to file - chunk range - "
-                + chunkOffset + " - " + chunkEndSet);
+        batch.sort(Comparator.comparingLong(Chunk::getOffset));
+        for (int i = 1; i <= batch.size(); i++) {
+            Chunk previousChunk = batch.get(i - 1);
+            boolean runContinues = i < batch.size()
+                    && batch.get(i).getOffset() == previousChunk.getOffset() + previousChunk.getSize_in_bytes();
 
-        // Write the given chunk data
-        for (int i = 0; i < chunkSize; i++) {
-            randomAccessFile.write(byteArray[i]);
+            if (!runContinues) {
+                long runOffset = batch.get(runStart).getOffset();
+                List<Chunk> run = batch.subList(runStart, i);
+                long writeStart = System.nanoTime();
+                long runSize = output.write(run);
+                stripedWriters.getWriteLatency().record(System.nanoTime() - writeStart);
+                for (Chunk chunk : run) {
+                    blockHasher.hashWritten(chunk);
+                }
+                if (Utilities.isDebugEnabled()) {
+                    Utilities.Debug(MODULE_NAME, "Writing chunk to file - chunk range - "
+                            + runOffset + " - " + (runOffset + runSize));
+                }
+                addDownloadedRange(rangeJournal, runOffset, runSize);
+                stripedWriters.reportWritten(runOffset, runOffset + runSize);
+                writtenBytes += runSize;
+                runStart = i;
+            }
         }
+
+        return writtenBytes;
     }
 
     // File rename operation
@@ -126,20 +249,6 @@ public class FileWriter implements Runnable {
         }
     }
 
-    // Update and write the download progress percentage
-    private double getUpdatedProgress(double progressPercentage, long chunkSize, long fileSize) {
-        double progressPercentageBefore = progressPercentage;
-        progressPercentage += ((double) chunkSize / fileSize) * 100;
-        int progressPercentageAfter = (int) progressPercentage;
-
-        // Check for a percentage change and update the user accordingly
-        if ((Math.floor(progressPercentageBefore) != progressPercentageAfter) || progressPercentageBefore == 0.0) {
-            System.err.println("Downloaded " + progressPercentageAfter + "%");
-        }
-
-        return progressPercentage;
-    }
-
     @Override
     public void run() {
         try {
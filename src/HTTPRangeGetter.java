@@ -5,42 +5,96 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * A runnable class which downloads a given url.
- * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+ * A runnable class which downloads a given file from its mirrors.
+ * It reads CHUNK_SIZE at a time and writs it into a ChunkSink.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ *
+ * The getter keeps asking the RangeScheduler for assignments until there is no work left.
+ * Connections are not disconnected after a complete response, so the next range request of the getter
+ * reuses the kept alive socket from the JDK per host connection cache instead of a new TCP (and TLS) handshake.
+ *
+ * A failed request gives the bytes it did not receive back to the RangeScheduler, which retries them
+ * after a backoff, and the per host CircuitBreaker holds the requests back while the host keeps failing.
+ * A getter may also be handed a slow assignment of another getter to hedge, both of them read it and
+ * the one which is behind stops once the assignment is done.
+ *
+ * Every request goes to a mirror picked by the MirrorSelector, which is told how fast the request was
+ * or that it failed.
+ *
+ * A short assignment takes the small pending gaps after it along (typical after a fragmented resume),
+ * and all of them are asked for in a single request. The multipart/byteranges response is parsed straight
+ * into chunks at the offsets of its parts. A server answering with a single range or the whole file
+ * is read the same way, by the offsets the response covers, and gets single range requests from then on.
+ *
+ * The received bytes are counted for the DownloadMetrics, as those of a connection of their own.
  */
 public class HTTPRangeGetter implements Runnable {
     private static final String MODULE_NAME = "HTTPRangeGetter";
     static final int CHUNK_SIZE = 4096;
     private static final int CONNECT_TIMEOUT = 500;
     private static final int READ_TIMEOUT = 2000;
-    private final String url;
-    private final Range range;
-    private final BlockingQueue<Chunk> outQueue;
-    private TokenBucket tokenBucket;
+    private static final int MAX_RANGES_PER_REQUEST = 16;
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range:";
+    private final MirrorSelector mirrorSelector;
+    private final RangeScheduler rangeScheduler;
+    private final ChunkSink outQueue;
+    private final ChunkPool chunkPool;
+    private final TokenBucket tokenBucket;
+    private final DownloadMetrics downloadMetrics;
+    private DownloadMetrics.Connection connectionMetrics;
+    // The limits of this connection to every mirror host
+    private final Map<String, BandwidthLimiter> bandwidthLimiters;
 
     HTTPRangeGetter(
-            String url,
-            Range range,
-            BlockingQueue<Chunk> outQueue,
-            TokenBucket tokenBucket) {
-        this.url = url;
-        this.range = range;
+            MirrorSelector mirrorSelector,
+            RangeScheduler rangeScheduler,
+            ChunkSink outQueue,
+            ChunkPool chunkPool,
+            TokenBucket tokenBucket,
+            DownloadMetrics downloadMetrics) {
+        this.mirrorSelector = mirrorSelector;
+        this.rangeScheduler = rangeScheduler;
         this.outQueue = outQueue;
+        this.chunkPool = chunkPool;
         this.tokenBucket = tokenBucket;
+        this.downloadMetrics = downloadMetrics;
+        this.bandwidthLimiters = new HashMap<>();
     }
 
-    // Download the given worker range
-    private void downloadRange() throws IOException, InterruptedException {
-        String rangRequestProperty;
-        long startRange = this.range.getStart();
-        long endRange = this.range.getEnd();
+    // Download the given assignments with a single request, the last requested byte is inclusive
+    // in the HTTP range header. Several assignments are asked for as a multipart/byteranges response
+    private void downloadRanges(MirrorSelector.Mirror mirror, List<RangeScheduler.Assignment> assignments)
+            throws IOException, InterruptedException {
+        List<RequestedRange> requestedRanges = new ArrayList<>(assignments.size());
+        StringBuilder rangRequestProperty = new StringBuilder("bytes=");
+        for (RangeScheduler.Assignment assignment : assignments) {
+            RequestedRange requestedRange = new RequestedRange(assignment);
+            if (requestedRange.start >= requestedRange.end) {
+                continue; // finished by a hedging reader meanwhile
+            }
+            if (!requestedRanges.isEmpty()) {
+                rangRequestProperty.append(',');
+            }
+            rangRequestProperty.append(requestedRange.start).append('-').append(requestedRange.end - 1);
+            requestedRanges.add(requestedRange);
+        }
+        if (requestedRanges.isEmpty()) {
+            return;
+        }
+
+        // Wait while the circuit of the host is open
+        mirror.getCircuitBreaker().awaitClosed();
 
         // Open the url connection
-        URL url = new URL(this.url);
+        long requestStartTime = System.nanoTime();
+        URL url = new URL(mirror.getUrl());
         HttpURLConnection httpConnection = (HttpURLConnection) url.openConnection();
 
         // Set HTTP headers
@@ -49,53 +103,94 @@ public class HTTPRangeGetter implements Runnable {
         httpConnection.setConnectTimeout(CONNECT_TIMEOUT);
 
         // Set the range property
-        rangRequestProperty = String.format("bytes=%d-%d", startRange, endRange);
-        httpConnection.setRequestProperty("Range", rangRequestProperty);
-        Utilities.Log(MODULE_NAME, "range request - " + rangRequestProperty);
+        httpConnection.setRequestProperty("Range", rangRequestProperty.toString());
+        if (Utilities.isDebugEnabled()) {
+            Utilities.Debug(MODULE_NAME, "range request - " + rangRequestProperty);
+        }
         httpConnection.connect();
 
-        // Download the data in the given range
-        downloadData(httpConnection, startRange);
+        // Download the data in the given ranges
+        long receivedBytes = downloadData(mirror, httpConnection, requestedRanges);
+        mirror.recordTransfer(receivedBytes, System.nanoTime() - requestStartTime);
     }
 
-    private void downloadData(
+    // Returns the number of received bytes
+    private long downloadData(
+            MirrorSelector.Mirror mirror,
             HttpURLConnection httpConnection,
-            long offset)
+            List<RequestedRange> requestedRanges)
             throws
             IOException,
             InterruptedException {
 
         int resCode;
-        int dataSize;
         InputStream in = null;
+        boolean reusable = false;
+        long receivedBytes = 0;
+        CircuitBreaker circuitBreaker = mirror.getCircuitBreaker();
+        BandwidthLimiter bandwidthLimiter = bandwidthLimiters.computeIfAbsent(mirror.getHost(),
+                host -> new BandwidthLimiter(tokenBucket, host));
 
         try {
-            // Check tokens availability before opening a network connection
-            tokenBucket.take(CHUNK_SIZE);
-
             // Get the request response code
             resCode = httpConnection.getResponseCode();
-            Utilities.Log(MODULE_NAME, "Response code - " + resCode);
+            if (Utilities.isDebugEnabled()) {
+                Utilities.Debug(MODULE_NAME, "Response code - " + resCode);
+            }
 
             // Check the http response code(200 or 206)
             if (resCode == HttpURLConnection.HTTP_OK || resCode == HttpURLConnection.HTTP_PARTIAL) {
 
-                byte[] data = new byte[CHUNK_SIZE];
-                Utilities.Log(MODULE_NAME, "getting data from request");
+                Utilities.Debug(MODULE_NAME, "getting data from request");
 
                 in = httpConnection.getInputStream();
+                String contentType = httpConnection.getContentType();
+                // The end of the bytes the response is expected to cover
+                long responseEnd = Long.MAX_VALUE;
+
+                if (resCode == HttpURLConnection.HTTP_PARTIAL && contentType != null
+                        && contentType.toLowerCase().startsWith(MULTIPART_BYTERANGES)) {
+                    receivedBytes = readMultipart(in, multipartBoundary(contentType), requestedRanges,
+                            bandwidthLimiter);
+                } else {
+                    // A single range, or the whole file from a server which ignored the range header -
+                    // the data starts at the first byte of the file then
+                    long responseStart = 0;
+                    if (resCode == HttpURLConnection.HTTP_PARTIAL) {
+                        long[] contentRange = parseContentRange(httpConnection.getHeaderField("Content-Range"));
+                        responseStart = contentRange != null ? contentRange[0] : requestedRanges.get(0).start;
+                        responseEnd = contentRange != null ? contentRange[1] + 1 : requestedRanges.get(0).end;
+                    }
+                    if (requestedRanges.size() > 1) {
+                        Utilities.Log(MODULE_NAME, mirror.getHost() + " does not answer multiple ranges, "
+                                + "asking it for a single range from now on");
+                        mirror.disableMultipart();
+                    }
+                    receivedBytes = readPart(in, responseStart, responseEnd, requestedRanges, bandwidthLimiter);
+                }
 
-                // Loop over the response data
-                while ((dataSize = in.read(data)) != -1) {
-                    tokenBucket.take(dataSize); // Token availability
-                    Chunk chunk = new Chunk(data, offset, dataSize); // A chunk of data read
-                    outQueue.put(chunk); // Put the data in the queue
-                    offset += dataSize; // Change the next data offset
+                // The connection was closed before the whole response arrived, the rest is retried.
+                // Ranges a single range response did not cover are retried without blaming the host
+                for (RequestedRange requestedRange : requestedRanges) {
+                    if (!requestedRange.assignment.isDone() && requestedRange.start < responseEnd) {
+                        throw new IOException("connection closed at offset "
+                                + requestedRange.assignment.getPosition() + " before the range end");
+                    }
                 }
+
+                // Closing the stream hands the socket back to the keep alive cache,
+                // unread bytes of a stolen tail are drained by the JDK or the socket is dropped
+                reusable = true;
+                circuitBreaker.recordSuccess();
             } else{
                 System.err.println("Unable to download data, Response code from server was - " + resCode);
+                rangeScheduler.reportFailure();
+                circuitBreaker.recordFailure();
+                mirror.recordFailure();
             }
 
+            return receivedBytes;
+
         } catch (Exception e) {
             System.err.println("There was an exception during reading data from stream: " + e.getMessage());
             throw (e);
@@ -104,16 +199,229 @@ public class HTTPRangeGetter implements Runnable {
                 in.close();
             }
 
-            httpConnection.disconnect();
+            // A failed or unexpected response leaves the socket in an unknown state
+            if (!reusable) {
+                httpConnection.disconnect();
+            }
+        }
+    }
+
+    // Read the parts of a multipart/byteranges response, every part starts with its own Content-Range.
+    // Returns the number of received bytes
+    private long readMultipart(
+            InputStream in,
+            String boundary,
+            List<RequestedRange> requestedRanges,
+            BandwidthLimiter bandwidthLimiter) throws IOException, InterruptedException {
+        long receivedBytes = 0;
+        String line;
+
+        while ((line = readLine(in)) != null) {
+            if (line.isEmpty()) {
+                continue; // the line break ending the previous part
+            }
+            if (line.equals("--" + boundary + "--")) {
+                break;
+            }
+            if (!line.equals("--" + boundary)) {
+                throw new IOException("unexpected line in a multipart response: " + line);
+            }
+
+            // The part headers end with an empty line
+            long[] contentRange = null;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, CONTENT_RANGE_HEADER, 0, CONTENT_RANGE_HEADER.length())) {
+                    contentRange = parseContentRange(line.substring(CONTENT_RANGE_HEADER.length()));
+                }
+            }
+            if (contentRange == null) {
+                throw new IOException("a part of a multipart response has no Content-Range");
+            }
+
+            long partEnd = contentRange[1] + 1;
+            long partBytes = readPart(in, contentRange[0], partEnd, requestedRanges, bandwidthLimiter);
+            receivedBytes += partBytes;
+
+            // The part was cut short, or the rest of the response is not needed any more
+            if (contentRange[0] + partBytes < partEnd) {
+                break;
+            }
+        }
+
+        return receivedBytes;
+    }
+
+    // Read the data of the file range [start, end) from the stream into the requested ranges it belongs to,
+    // bytes between the requested ranges are dropped. Returns the number of received bytes
+    private long readPart(
+            InputStream in,
+            long start,
+            long end,
+            List<RequestedRange> requestedRanges,
+            BandwidthLimiter bandwidthLimiter) throws IOException, InterruptedException {
+        long offset = start;
+
+        // Loop over the response data until the assignments are done, their tails were stolen
+        // or a hedging reader received the rest
+        while (offset < end && !allDone(requestedRanges)) {
+            // A read never crosses the edge of a requested range, so its data belongs to one range at most
+            RequestedRange target = null;
+            long readEnd = end;
+            boolean neededLater = false;
+            for (RequestedRange requestedRange : requestedRanges) {
+                if (offset < requestedRange.start) {
+                    readEnd = Math.min(readEnd, requestedRange.start);
+                    neededLater = true;
+                } else if (offset < requestedRange.end) {
+                    target = requestedRange;
+                    readEnd = Math.min(readEnd, requestedRange.end);
+                }
+            }
+            if (target == null && !neededLater) {
+                break;
+            }
+
+            Chunk chunk = chunkPool.acquire(); // A reusable chunk to read into
+            try {
+                int dataSize = in.read(chunk.getData(), 0, (int) Math.min(CHUNK_SIZE, readEnd - offset));
+                if (dataSize == -1) {
+                    break;
+                }
+
+                bandwidthLimiter.take(dataSize); // Token availability
+                connectionMetrics.addReceivedBytes(dataSize);
+                // Bytes nobody else received
+                int claimedSize = target != null ? target.assignment.claim(chunk, offset, dataSize) : 0;
+                offset += dataSize; // Change the next data offset
+                if (claimedSize > 0) {
+                    outQueue.put(chunk); // Put the data in the queue, the writer releases it
+                    chunk = null;
+                }
+            } finally {
+                if (chunk != null) {
+                    chunkPool.release(chunk);
+                }
+            }
+        }
+
+        return offset - start;
+    }
+
+    private static boolean allDone(List<RequestedRange> requestedRanges) {
+        for (RequestedRange requestedRange : requestedRanges) {
+            if (!requestedRange.assignment.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The boundary parameter of a multipart content type, quoted or not
+    private static String multipartBoundary(String contentType) throws IOException {
+        int boundaryIndex = contentType.toLowerCase().indexOf("boundary=");
+        if (boundaryIndex == -1) {
+            throw new IOException("multipart response without a boundary: " + contentType);
+        }
+
+        String boundary = contentType.substring(boundaryIndex + "boundary=".length()).trim();
+        int parameterEnd = boundary.indexOf(';');
+        if (parameterEnd != -1) {
+            boundary = boundary.substring(0, parameterEnd).trim();
+        }
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary;
+    }
+
+    // The first and last byte of a "bytes first-last/size" content range, or null if it is missing
+    private static long[] parseContentRange(String contentRange) throws IOException {
+        if (contentRange == null) {
+            return null;
+        }
+
+        String value = contentRange.trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (!value.startsWith("bytes ") || dash == -1 || slash < dash) {
+            throw new IOException("unexpected Content-Range: " + contentRange);
+        }
+
+        try {
+            return new long[]{
+                    Long.parseLong(value.substring("bytes ".length(), dash).trim()),
+                    Long.parseLong(value.substring(dash + 1, slash).trim())};
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected Content-Range: " + contentRange);
+        }
+    }
+
+    // A line of the multipart headers without its line break, or null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+
+        return b == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * An assignment together with the range it was requested for. The assignment may shrink meanwhile,
+     * but the response still carries the bytes of the requested range.
+     */
+    private static class RequestedRange {
+        private final RangeScheduler.Assignment assignment;
+        private final long start;
+        private final long end;
+
+        RequestedRange(RangeScheduler.Assignment assignment) {
+            this.assignment = assignment;
+            this.start = assignment.getPosition();
+            this.end = assignment.getEnd();
         }
     }
 
     @Override
     public void run() {
+        RangeScheduler.Assignment assignment;
+
+        connectionMetrics = downloadMetrics.openConnection(MODULE_NAME);
         try {
-            this.downloadRange();
-        } catch (IOException | InterruptedException e) {
-            System.err.println("There was an exception while getting data from the network: " + e.getMessage());
+            while ((assignment = rangeScheduler.next()) != null) {
+                MirrorSelector.Mirror mirror = mirrorSelector.select();
+                List<RangeScheduler.Assignment> assignments = new ArrayList<>();
+                assignments.add(assignment);
+                if (mirror.isMultipartSupported()) {
+                    assignments.addAll(rangeScheduler.pollNearbyGaps(assignment, MAX_RANGES_PER_REQUEST));
+                }
+
+                try {
+                    this.downloadRanges(mirror, assignments);
+                } catch (IOException e) {
+                    System.err.println("There was an exception while getting data from the network: " + e.getMessage());
+                    rangeScheduler.reportFailure();
+                    mirror.recordFailure();
+
+                    // A connection dropped in the middle of the data still shows the host is up
+                    if (assignments.stream().anyMatch(RangeScheduler.Assignment::hasProgress)) {
+                        mirror.getCircuitBreaker().recordSuccess();
+                    } else {
+                        mirror.getCircuitBreaker().recordFailure();
+                    }
+                } finally {
+                    for (RangeScheduler.Assignment requestedAssignment : assignments) {
+                        rangeScheduler.complete(requestedAssignment);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted Exception while downloading " + e.getMessage());
+        } finally {
+            downloadMetrics.closeConnection(connectionMetrics);
         }
     }
 }
@@ -1,27 +1,86 @@
 import Utill.Utilities;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class IdcDm {
 
     static long fileSize;
+
+    /**
+     * How the range connections are driven:
+     * THREADS - a pool thread per connection, blocking on its HTTPRangeGetter
+     * VIRTUAL - like THREADS, but the getters and the FileWriter run on virtual threads (java 21+)
+     * ASYNC - non blocking connections of the AsyncRangeDownloader on a few event loop threads
+     */
+    private enum Engine {
+        THREADS, VIRTUAL, ASYNC
+    }
+
     private static final String MODULE_NAME = "IdcDm";
     private static final int SMALLEST_RANGE_SIZE = HTTPRangeGetter.CHUNK_SIZE * 10;
+    private static final int SEGMENTS_PER_WORKER = 4;
     private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
     private static final int TIME_BETWEEN_ATTEMPTS = 4000;
     private static int numberOfWorkers;
+    private static boolean autoTuneConnections;
+    private static final String AUTO_CONNECTIONS = "auto";
+    private static final String MAX_AUTO_CONNECTIONS_PROPERTY = "idcdm.maxAutoConnections";
+    private static final int DEFAULT_MAX_AUTO_CONNECTIONS = 32;
+    private static final String CONNECTIONS_FILE_PROPERTY = "idcdm.connectionsFile";
+    private static final String DEFAULT_CONNECTIONS_FILE = ".idcdm.connections";
+    private static String connectionsFilename;
     private static Long maxBytesPerSecond;
     private static String url;
+    private static List<String> mirrorUrls;
+    private static MirrorSelector mirrorSelector;
     private static int numberOfDownloadAttempts;
     private static DownloadableMetadata downloadableMetadata;
-    private static int CHUNCK_QUEUE_SIZE = 4096;
+    private static final String MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
+    private static final String ENGINE_PROPERTY = "idcdm.engine";
+    private static final String EVENT_LOOP_THREADS_PROPERTY = "idcdm.eventLoopThreads";
+    private static final int DEFAULT_EVENT_LOOP_THREADS = 2;
+    private static final String OUTPUT_MODE_PROPERTY = "idcdm.output";
+    private static final String SYNC_POLICY_PROPERTY = "idcdm.sync";
+    private static final String SYNC_INTERVAL_MB_PROPERTY = "idcdm.syncIntervalMB";
+    private static final long DEFAULT_SYNC_INTERVAL_MB = 8;
+    private static final String WRITERS_PROPERTY = "idcdm.writers";
+    private static final int DEFAULT_MAX_WRITERS = 4;
+    private static final String BUFFER_MB_PROPERTY = "idcdm.bufferMB";
+    private static final long DEFAULT_BUFFER_MB = 16;
+    private static final String STREAM_PROPERTY = "idcdm.stream";
+    private static final String STREAM_TO_STDOUT = "-";
+    private static final String STREAM_WINDOW_MB_PROPERTY = "idcdm.streamWindowMB";
+    private static final long DEFAULT_STREAM_WINDOW_MB = 64;
+    private static final String DIGEST_PROPERTY = "idcdm.digest";
+    private static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+    private static final String METRICS_INTERVAL_MS_PROPERTY = "idcdm.metricsIntervalMs";
+    private static final long DEFAULT_METRICS_INTERVAL_MS = 1000;
+    private static final String LOG_LEVEL_PROPERTY = "idcdm.logLevel";
+    private static Engine engine;
+    private static int numberOfEventLoopThreads;
+    private static FileWriter.OutputMode outputMode;
+    private static FileWriter.SyncPolicy syncPolicy;
+    private static long syncIntervalBytes;
+    private static int numberOfWriters;
+    private static long bufferBytes;
+    private static String streamTarget;
+    private static long streamWindowBytes;
+    private static InOrderStreamer inOrderStreamer;
+    private static String digestAlgorithm;
+    private static long metricsIntervalNanos;
+    private static DownloadMetrics downloadMetrics;
     private static final String END_OF_DOWNLOAD_MESSAGE = "Download %s \n";
     private static final String METADATA_FILE_WAS_FOUND_MESSAGE = "Metadata file was found. Resume downloading... \n";
     private static final String RETRIEVE_DATA_MESSAGE = "Retrieving failed data - attempt number: %d \n";
+    private static final String BLOCKS_FAILED_VERIFICATION_MESSAGE = "%d blocks failed verification, downloading them again \n";
+    private static final String TREE_HASH_MESSAGE = "%s tree hash: %s \n";
+    private static final String FILE_CHANGED_MESSAGE = "The file changed on the server. Downloading it again... \n";
 
 
     /**
@@ -32,23 +91,74 @@ public class IdcDm {
      */
     public static void main(String[] args) throws InterruptedException {
         numberOfWorkers = 1;
+        autoTuneConnections = false;
         maxBytesPerSecond = null;
         numberOfDownloadAttempts = 0;
+        downloadMetrics = null;
 
 
         if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("usage:\n\tjava IdcDm URL[,MIRROR-URL...] [MAX-CONCURRENT-CONNECTIONS|auto] [MAX-DOWNLOAD-LIMIT]\n");
             System.exit(1);
         } else if (args.length >= 2) {
-            numberOfWorkers = Integer.parseInt(args[1]);
+            if (args[1].equalsIgnoreCase(AUTO_CONNECTIONS)) {
+                // tuned while downloading, up to a maximum
+                autoTuneConnections = true;
+                numberOfWorkers = Integer.getInteger(MAX_AUTO_CONNECTIONS_PROPERTY, DEFAULT_MAX_AUTO_CONNECTIONS);
+            } else {
+                numberOfWorkers = Integer.parseInt(args[1]);
+            }
             if (args.length == 3)
                 maxBytesPerSecond = Long.parseLong(args[2]);
         }
 
-        url = args[0];
+        // Mirrors of the same file are separated by commas, the file is named after the first one
+        mirrorUrls = Arrays.asList(args[0].split(","));
+        url = mirrorUrls.get(0);
+
+        // Keep a kept alive connection per worker, the JDK default per host is only 5
+        if (System.getProperty(MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY, Integer.toString(Math.max(5, numberOfWorkers)));
+        }
+
+        // Optional tuning, given as system properties so the command-line stays as is
+        Utilities.setLogLevel(Utilities.Level.valueOf(
+                System.getProperty(LOG_LEVEL_PROPERTY, Utilities.Level.INFO.name()).toUpperCase()));
+        engine = Engine.valueOf(System.getProperty(ENGINE_PROPERTY, Engine.THREADS.name()).toUpperCase());
+        if (engine == Engine.VIRTUAL && !VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+            engine = Engine.THREADS;
+        }
+        // The best connection counts per host, shared by all the downloads of the user
+        connectionsFilename = System.getProperty(CONNECTIONS_FILE_PROPERTY,
+                new File(System.getProperty("user.home"), DEFAULT_CONNECTIONS_FILE).getPath());
+        numberOfEventLoopThreads = Integer.getInteger(EVENT_LOOP_THREADS_PROPERTY, DEFAULT_EVENT_LOOP_THREADS);
+        outputMode = FileWriter.OutputMode.valueOf(
+                System.getProperty(OUTPUT_MODE_PROPERTY, FileWriter.OutputMode.CHANNEL.name()).toUpperCase());
+        syncPolicy = FileWriter.SyncPolicy.valueOf(
+                System.getProperty(SYNC_POLICY_PROPERTY, FileWriter.SyncPolicy.BYTES.name()).toUpperCase());
+        syncIntervalBytes = Long.getLong(SYNC_INTERVAL_MB_PROPERTY, DEFAULT_SYNC_INTERVAL_MB) * 1024 * 1024;
+        numberOfWriters = Math.max(1, Integer.getInteger(WRITERS_PROPERTY,
+                Math.min(DEFAULT_MAX_WRITERS, Runtime.getRuntime().availableProcessors())));
+        bufferBytes = Long.getLong(BUFFER_MB_PROPERTY, DEFAULT_BUFFER_MB) * 1024 * 1024;
+        streamTarget = System.getProperty(STREAM_PROPERTY);
+        streamWindowBytes = Long.getLong(STREAM_WINDOW_MB_PROPERTY, DEFAULT_STREAM_WINDOW_MB) * 1024 * 1024;
+        digestAlgorithm = System.getProperty(DIGEST_PROPERTY, DEFAULT_DIGEST_ALGORITHM);
+        metricsIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(1, Long.getLong(METRICS_INTERVAL_MS_PROPERTY, DEFAULT_METRICS_INTERVAL_MS)));
+        try {
+            BlockHasher.newDigest(digestAlgorithm);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ", using " + DEFAULT_DIGEST_ALGORITHM);
+            digestAlgorithm = DEFAULT_DIGEST_ALGORITHM;
+        }
 
         System.err.printf("Downloading");
-        if (numberOfWorkers > 1)
+        if (mirrorUrls.size() > 1)
+            System.err.printf(" from %d mirrors", mirrorUrls.size());
+        if (autoTuneConnections)
+            System.err.printf(" using up to %d auto tuned connections", numberOfWorkers);
+        else if (numberOfWorkers > 1)
             System.err.printf(" using %d connections", numberOfWorkers);
         if (maxBytesPerSecond != null)
             System.err.printf(" limited to %d Bps", maxBytesPerSecond);
@@ -62,13 +172,41 @@ public class IdcDm {
         String downloadStatus = "failed operation - Look log file for more information";
         // Initiate the file's metadata
         File metaDataFile;
-        fileSize = getFileSize(url);
+        File[] journalFiles;
+        mirrorSelector = MirrorSelector.probe(mirrorUrls);
+        fileSize = mirrorSelector != null ? mirrorSelector.getFileSize() : -1;
         downloadableMetadata = new DownloadableMetadata(url);
         metaDataFile = new File(downloadableMetadata.getMetadataFilename());
-        if (metaDataFile.exists()) {
+        journalFiles = downloadableMetadata.getJournalFiles();
+        if (metaDataFile.exists() || journalFiles.length > 0) {
             try {
-                getAndSetMeteDataFromFile(metaDataFile);
+                // Load the last snapshot, and replay the ranges every writer stripe wrote after it
+                if (metaDataFile.exists()) {
+                    getAndSetMeteDataFromFile(metaDataFile);
+                }
+                for (File journalFile : journalFiles) {
+                    RangeJournal.replay(journalFile, downloadableMetadata);
+                }
                 Utilities.ErrorLog(MODULE_NAME,METADATA_FILE_WAS_FOUND_MESSAGE);
+
+                // The downloaded ranges belong to another version of the file
+                if (mirrorSelector != null && isAnotherVersion(downloadableMetadata, mirrorSelector)) {
+                    System.err.printf(FILE_CHANGED_MESSAGE);
+                    downloadableMetadata.delete();
+                    if (!new File(downloadableMetadata.getFilename() + ".tmp").delete()) {
+                        Utilities.Log(MODULE_NAME, "Delete operation of the temp file has failed.");
+                    }
+                    downloadableMetadata = new DownloadableMetadata(url);
+                }
+
+                // Only the blocks which do not match their digests are downloaded again
+                File tempFile = new File(downloadableMetadata.getFilename() + ".tmp");
+                if (fileSize != -1 && tempFile.exists()) {
+                    int droppedBlocks = BlockHasher.verify(downloadableMetadata, tempFile, fileSize, digestAlgorithm);
+                    if (droppedBlocks > 0) {
+                        System.err.printf(BLOCKS_FAILED_VERIFICATION_MESSAGE, droppedBlocks);
+                    }
+                }
             } catch (IOException e) {
                 System.err.println( "Could not read metadata file!");
             }
@@ -78,6 +216,35 @@ public class IdcDm {
             }
         }
 
+        if (mirrorSelector != null) {
+            downloadableMetadata.setETag(mirrorSelector.getETag());
+        }
+        if (fileSize != -1) {
+            downloadableMetadata.setFileSize(fileSize);
+        }
+
+        // Stream the file in order while it downloads, starting with what was downloaded before
+        Thread streamerThread = null;
+        if (streamTarget != null && fileSize != -1) {
+            try {
+                inOrderStreamer = new InOrderStreamer(new File(downloadableMetadata.getFilename() + ".tmp"), fileSize,
+                        downloadableMetadata.copyDownloadedRanges(), openStream(streamTarget), streamWindowBytes);
+                streamerThread = new Thread(inOrderStreamer, "InOrderStreamer");
+                streamerThread.start();
+            } catch (IOException e) {
+                System.err.println("Could not open the stream " + streamTarget + ", downloading to the file only "
+                        + e.getMessage());
+                inOrderStreamer = null;
+            }
+        }
+
+        // The progress, the time left and the metrics of all the attempts are sampled on their own thread
+        if (fileSize != -1) {
+            downloadMetrics = new DownloadMetrics(fileSize, downloadableMetadata.get_sizeInBytes(),
+                    metricsIntervalNanos);
+            downloadMetrics.start();
+        }
+
         /* Try to download a file for max number of attempts attempts.
            In case of missing data, due to timeout connection or any other
            error in one of the concurrent connections will try to recover
@@ -99,8 +266,26 @@ public class IdcDm {
             }
         }
 
+        if (downloadMetrics != null) {
+            downloadMetrics.stop();
+        }
+
+        // The stream gets all of the file, or the prefix which was downloaded if the download failed
+        if (streamerThread != null) {
+            inOrderStreamer.finish();
+            streamerThread.join();
+        }
+
         // Check if the download is completed
         if (downloadableMetadata.isCompleted()) {
+            try {
+                // Every block was hashed while it was written, so this reads nothing in the common case
+                String treeHash = BlockHasher.treeHash(downloadableMetadata,
+                        new File(downloadableMetadata.getFilename() + ".tmp"), fileSize, digestAlgorithm);
+                System.err.printf(TREE_HASH_MESSAGE, digestAlgorithm, treeHash);
+            } catch (IOException e) {
+                System.err.println("Could not hash the downloaded file " + e.getMessage());
+            }
             FileWriter.renameTmp(downloadableMetadata.getFilename());
             downloadableMetadata.delete();
             downloadStatus = "succeeded";
@@ -113,131 +298,164 @@ public class IdcDm {
 
     /**
      * Initiate the file's metadata, and iterate over missing ranges. For each:
-     * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
-     * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
-     * 3. Join the FileWriter and RateLimiter
+     * 1. Setup the StripedWriters, TokenBucket, DownloadableMetadata, RangeScheduler and a pool of HTTPRangeGetters
+     * 2. Join the HTTPRangeGetters and send finish marker to the writer queues
+     * 3. Join the FileWriters
      * <p>
      * Finally, print "Download succeeded/failed" and delete the metadata as needed.
      */
-    private static void Download() {
+    private static void Download() throws IOException {
 
         ArrayList<Range> ranges;
 
         ranges = downloadableMetadata.getMissingRanges();
 
-        // Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
+        // Setup the StripedWriters, TokenBucket, DownloadableMetadata, and a pool of HTTPRangeGetters
         TokenBucket tokenBucket;
-        RateLimiter rateLimiter;
-        FileWriter fileWriter;
-        Thread fileWriterThread;
-
-        Utilities.Log(MODULE_NAME, "chunkQueueSize is: " + CHUNCK_QUEUE_SIZE);
-        BlockingQueue<Chunk> chunkQueue = new ArrayBlockingQueue<>(CHUNCK_QUEUE_SIZE);
-
-        if (maxBytesPerSecond != null) {
-            tokenBucket = new TokenBucket(false);
-            rateLimiter = new RateLimiter(tokenBucket, maxBytesPerSecond);
-        } else {
-            tokenBucket = new TokenBucket(true);
-            rateLimiter = new RateLimiter(tokenBucket, Long.MAX_VALUE);
-        }
-
-        fileWriter = new FileWriter(downloadableMetadata, chunkQueue);
-        fileWriterThread = new Thread(fileWriter);
-        Utilities.Log(MODULE_NAME, "starting fileWriterThread");
-        fileWriterThread.start();
-        Thread rateLimiterThread = new Thread(rateLimiter);
-        Utilities.Log(MODULE_NAME, "starting rateLimiterThread");
-        rateLimiterThread.start();
+        StripedWriters stripedWriters;
+
+        // The buffer is split between the writer rings, each of them holds at least two full batches.
+        // A batch is counted until it was written, so a writer never waits for chunks it could write
+        long ringBudgetBytes = Math.max(2L * FileWriter.MAX_BATCH_SIZE * HTTPRangeGetter.CHUNK_SIZE,
+                bufferBytes / numberOfWriters);
+        Utilities.Log(MODULE_NAME, "ring budget is: " + ringBudgetBytes + " bytes per writer");
+        // Enough chunks to fill the rings while every getter reads another one, which it may split at a stripe
+        // boundary. The rings count whole chunk buffers, so this is all the chunk memory of the download
+        ChunkPool chunkPool = new ChunkPool(
+                (int) (numberOfWriters * (ringBudgetBytes / HTTPRangeGetter.CHUNK_SIZE)) + 2 * numberOfWorkers,
+                HTTPRangeGetter.CHUNK_SIZE);
+
+        // The download limit, every connection also takes from its own, its host's and the global limits.
+        // The bucket refills continuously by itself, so no rate limiter thread is needed
+        tokenBucket = BandwidthLimiter.newBucket(maxBytesPerSecond);
+
+        stripedWriters = new StripedWriters(downloadableMetadata, numberOfWriters, ringBudgetBytes, chunkPool,
+                outputMode, syncPolicy, syncIntervalBytes, digestAlgorithm, inOrderStreamer);
+        Utilities.Log(MODULE_NAME, "starting " + numberOfWriters + " fileWriterThreads");
+        stripedWriters.start(threadFactory("FileWriter"));
+        downloadMetrics.attachWriters(stripedWriters);
 
         ExecutorService httpRangeGetterTPExecutor =
                 executeHttpRangeGetterThreadPool(
-                        url,
+                        mirrorSelector,
                         numberOfWorkers,
-                        CHUNCK_QUEUE_SIZE,
-                        chunkQueue,
+                        stripedWriters,
+                        chunkPool,
                         tokenBucket,
                         ranges
                 );
 
-        // Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
-        joinThreads(chunkQueue, fileWriterThread, tokenBucket, rateLimiterThread, httpRangeGetterTPExecutor);
+        // Join the HTTPRangeGetters and send finish marker to the writer queues
+        joinThreads(stripedWriters, httpRangeGetterTPExecutor);
 
     }
 
-    private static void getAndSetMeteDataFromFile(File metadataFile) throws IOException {
+    // Whether the downloaded ranges belong to another version of the file than the one the mirrors serve -
+    // the ETag changed, or without ETags the size changed
+    private static boolean isAnotherVersion(DownloadableMetadata downloadableMetadata, MirrorSelector mirrorSelector) {
+        if (downloadableMetadata.getETag() != null && mirrorSelector.getETag() != null
+                && !downloadableMetadata.getETag().equals(mirrorSelector.getETag())) {
+            return true;
+        }
+        if (fileSize == -1) {
+            return false;
+        }
+
+        // Journals replayed without a snapshot do not know the size, but may still reach past the end
+        Map.Entry<Long, Long> lastRange = downloadableMetadata.getDownloadedRanges().lastEntry();
+        return (downloadableMetadata.getFileSize() != -1 && downloadableMetadata.getFileSize() != fileSize)
+                || (lastRange != null && lastRange.getValue() > fileSize);
+    }
 
-        // Read and set metaData serialized object
-        try (InputStream readMetaDateFile = new FileInputStream(metadataFile);
-             ObjectInput metaData = new ObjectInputStream(readMetaDateFile)) {
+    private static void getAndSetMeteDataFromFile(File metadataFile) {
 
-            Utilities.Log(MODULE_NAME, "Resume Download");
-            Utilities.Log(MODULE_NAME, "Reading meta data file...");
-            downloadableMetadata = (DownloadableMetadata) metaData.readObject();
-        } catch (FileNotFoundException | ClassNotFoundException e) {
-            Utilities.Log(MODULE_NAME, "There was an error while reading metadata file " + e.getMessage());
+        // Read and set the metadata snapshot, an unreadable one is ignored and its ranges downloaded again
+        Utilities.Log(MODULE_NAME, "Resume Download");
+        Utilities.Log(MODULE_NAME, "Reading meta data file...");
+        try {
+            downloadableMetadata = MetadataFormat.read(metadataFile);
+        } catch (IOException e) {
+            Utilities.ErrorLog(MODULE_NAME, "There was an error while reading metadata file " + e.getMessage());
         }
     }
 
     private static ExecutorService executeHttpRangeGetterThreadPool(
-            String url,
+            MirrorSelector mirrorSelector,
             int numberOfWorkers,
-            int chunkQueueSize,
-            BlockingQueue<Chunk> chunkQueue, TokenBucket tokenBucket,
+            ChunkSink chunkSink, ChunkPool chunkPool, TokenBucket tokenBucket,
             ArrayList<Range> ranges) {
 
-        ExecutorService httpRangeGetterTPExecutor = Executors.newFixedThreadPool(numberOfWorkers);
+        long missingBytes = 0;
         int relevantNumberOfWorkers;
-        int maxNumberOfWorkers;
-        long rangeChunkSize;
-        long startRange;
-        long endRange;
-
-        Utilities.Log(MODULE_NAME, "rangeChunkSize is: " + chunkQueueSize);
-
-        // loop over missing ranges
-        for (Range mainRange : ranges) {
-
-            // calculate the max number of workers needed for this range
-            maxNumberOfWorkers = rangeMaximalNumberOfConnections(mainRange);
-            relevantNumberOfWorkers = Math.min(numberOfWorkers, maxNumberOfWorkers);
-            Utilities.Log(MODULE_NAME, "Set relevant number of workers: " + relevantNumberOfWorkers);
-            rangeChunkSize = (int) Math.ceil(((double) mainRange.getLength() / relevantNumberOfWorkers));
-            startRange = mainRange.getStart();
-            endRange = startRange + rangeChunkSize;
-            //  Split work between workers
-            for (int i = 0; i < relevantNumberOfWorkers; i++) {
-
-                Utilities.Log(MODULE_NAME, "Starting a HTTPRangeGetter thread with ranges:");
-                Utilities.Log(MODULE_NAME, "startRange: " + startRange);
-                Utilities.Log(MODULE_NAME, "endRange: " + endRange);
-
-                Range range = new Range(startRange, endRange);
-                HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(url, range, chunkQueue, tokenBucket);
-                httpRangeGetterTPExecutor.execute(httpRangeGetter);
-                startRange = endRange + 1;
-
-                // final process range should end at the end of the main range
-                if (i == relevantNumberOfWorkers - 2) {
-                    endRange = mainRange.getEnd();
-                } else {
-                    endRange += rangeChunkSize;
-                }
+        long segmentSize;
 
-                Utilities.Log(MODULE_NAME, "Executing a HTTPRangeGetter thread with ranges:");
-            }
+        for (Range range : ranges) {
+            missingBytes += range.getLength();
+        }
+
+        // calculate the max number of workers needed for the missing data
+        relevantNumberOfWorkers = Math.max(1, Math.min(numberOfWorkers, maximalNumberOfConnections(missingBytes)));
+        Utilities.Log(MODULE_NAME, "Set relevant number of workers: " + relevantNumberOfWorkers);
+
+        // Give each worker a few segments, idle workers steal from the slow ones at the end
+        segmentSize = Math.max(SMALLEST_RANGE_SIZE, missingBytes / ((long) relevantNumberOfWorkers * SEGMENTS_PER_WORKER));
+        // When streaming, all the workers should fit into the lookahead window with a couple of segments each
+        if (inOrderStreamer != null) {
+            segmentSize = Math.max(SMALLEST_RANGE_SIZE, Math.min(segmentSize,
+                    streamWindowBytes / ((long) relevantNumberOfWorkers * 2)));
+        }
+        Utilities.Log(MODULE_NAME, "segmentSize is: " + segmentSize);
+        RangeScheduler rangeScheduler = new RangeScheduler(ranges, segmentSize, SMALLEST_RANGE_SIZE, chunkSink);
+        if (inOrderStreamer != null) {
+            rangeScheduler.streamTo(inOrderStreamer);
+        }
+        downloadMetrics.attachScheduler(rangeScheduler);
+
+        if (engine == Engine.ASYNC) {
+            // A single thread waits for all the non blocking connections, so the pool is joined the same way.
+            // Non blocking connections are cheap, so auto tuning just uses the maximal number of connections
+            ExecutorService asyncDownloaderExecutor = Executors.newSingleThreadExecutor();
+            Utilities.Log(MODULE_NAME, "Executing an AsyncRangeDownloader");
+            asyncDownloaderExecutor.execute(new AsyncRangeDownloader(mirrorSelector, rangeScheduler, chunkSink, chunkPool,
+                    tokenBucket, downloadMetrics, relevantNumberOfWorkers, numberOfEventLoopThreads));
+            return asyncDownloaderExecutor;
+        }
+
+        if (autoTuneConnections) {
+            // The tuner starts and retires the getters itself, so the pool is joined through its thread
+            ExecutorService connectionTunerExecutor = Executors.newSingleThreadExecutor();
+            Utilities.Log(MODULE_NAME, "Executing a ConnectionTuner");
+            connectionTunerExecutor.execute(new ConnectionTuner(mirrorSelector, connectionsFilename, rangeScheduler,
+                    () -> new HTTPRangeGetter(mirrorSelector, rangeScheduler, chunkSink, chunkPool, tokenBucket,
+                            downloadMetrics),
+                    threadFactory("HTTPRangeGetter"), relevantNumberOfWorkers));
+            return connectionTunerExecutor;
+        }
 
+        ExecutorService httpRangeGetterTPExecutor = Executors.newFixedThreadPool(relevantNumberOfWorkers,
+                threadFactory("HTTPRangeGetter"));
+        for (int i = 0; i < relevantNumberOfWorkers; i++) {
+            Utilities.Log(MODULE_NAME, "Executing a HTTPRangeGetter thread");
+            HTTPRangeGetter httpRangeGetter = new HTTPRangeGetter(mirrorSelector, rangeScheduler, chunkSink, chunkPool,
+                    tokenBucket, downloadMetrics);
+            httpRangeGetterTPExecutor.execute(httpRangeGetter);
         }
 
         return httpRangeGetterTPExecutor;
     }
 
+    // Threads of the download pipeline, virtual threads in the VIRTUAL engine
+    private static ThreadFactory threadFactory(String name) {
+        if (engine == Engine.VIRTUAL) {
+            return VirtualThreads.factory(name);
+        }
+
+        return runnable -> new Thread(runnable, name);
+    }
+
     private static void joinThreads(
-            BlockingQueue<Chunk> chunkQueue,
-            Thread fileWriterThread,
-            TokenBucket tokenBucket,
-            Thread rateLimiterThread,
-            ExecutorService httpRangeGetterTPExecutor) {
+            StripedWriters stripedWriters,
+            ExecutorService httpRangeGetterTPExecutor) throws IOException {
         try {
             // join httpRangeGetter thread pool
             httpRangeGetterTPExecutor.shutdown();
@@ -245,37 +463,23 @@ public class IdcDm {
                 Utilities.Log(MODULE_NAME, "Not yet. Still waiting for termination");
             }
 
-            // mark end of queue with -1 offset
-            chunkQueue.put(new Chunk(new byte[0], -1, 0));
-            tokenBucket.terminate();
-
-            // Join the FileWriter and RateLimiter Threads
-            fileWriterThread.join();
-            rateLimiterThread.join();
+            // Mark the end of the writer queues and join the FileWriter threads
+            stripedWriters.close();
         } catch (InterruptedException e) {
             System.err.println( "Interrupted Exception joining threads " + e.getMessage());
         }
     }
 
-    private static int getFileSize(String urlString) {
-        URL url;
-        HttpURLConnection httpConnection = null;
-
-        try {
-            url = new URL(urlString);
-            httpConnection = (HttpURLConnection) url.openConnection();
-            httpConnection.setRequestMethod("HEAD");
-            return httpConnection.getContentLength();
-        } catch (IOException e) {
-            System.err.println( "There was an IO exception while getting the file size " + e.getMessage());
-        } finally {
-            httpConnection.disconnect();
+    // The channel the streaming mode writes to - standard output or a file, which may be a named pipe
+    private static WritableByteChannel openStream(String target) throws IOException {
+        if (target.equals(STREAM_TO_STDOUT)) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
         }
 
-        return -1;
+        return new FileOutputStream(target).getChannel();
     }
 
-    private static int rangeMaximalNumberOfConnections(Range i_range) {
-        return (int) Math.ceil((((double) i_range.getLength()) / SMALLEST_RANGE_SIZE));
+    private static int maximalNumberOfConnections(long i_numberOfBytes) {
+        return (int) Math.ceil((((double) i_numberOfBytes) / SMALLEST_RANGE_SIZE));
     }
 }
@@ -0,0 +1,139 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streams the file in file order to an output channel while the parallel download still runs.
+ *
+ * The FileWriters report every range they wrote, and the streamer follows the contiguous prefix of the file
+ * which is already written. Its thread copies the prefix from the .tmp file to the output as it grows,
+ * with transferTo, so the bytes go from the page cache to the consumer without passing through the heap.
+ *
+ * The .tmp file is the reorder buffer. It is bounded by the lookahead window - the RangeScheduler hands out
+ * no segment starting more than the window past the streamed offset, and favours the head of the stream
+ * when it hedges. If the consumer goes away the download carries on into the file alone.
+ */
+class InOrderStreamer implements Runnable {
+    private static final String MODULE_NAME = "InOrderStreamer";
+    private final FileChannel fileChannel;
+    private final WritableByteChannel output;
+    private final long fileSize;
+    private final long lookaheadWindow;
+    // start -> end of the written ranges past the contiguous prefix, guarded by this
+    private final TreeMap<Long, Long> writtenAhead;
+    private long contiguousEnd; // guarded by this
+    private boolean finished; // guarded by this
+    private volatile long streamedOffset;
+    private volatile boolean failed;
+
+    InOrderStreamer(
+            File file,
+            long fileSize,
+            TreeMap<Long, Long> downloadedRanges,
+            WritableByteChannel output,
+            long lookaheadWindow) throws IOException {
+        // The writers of the first attempt may not have created the file yet
+        if (file.createNewFile()) {
+            Utilities.Log(MODULE_NAME, "created " + file.getName() + " to stream from");
+        }
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.output = output;
+        this.fileSize = fileSize;
+        this.lookaheadWindow = lookaheadWindow;
+        this.writtenAhead = new TreeMap<>();
+        this.contiguousEnd = 0;
+        this.finished = false;
+        this.streamedOffset = 0;
+        this.failed = false;
+
+        // The ranges downloaded by a previous run are streamed first
+        for (Map.Entry<Long, Long> range : downloadedRanges.entrySet()) {
+            addWrittenRange(range.getKey(), range.getValue());
+        }
+    }
+
+    // Called by the FileWriters after the range [start, end) was written to the file
+    synchronized void addWrittenRange(long start, long end) {
+        if (end <= contiguousEnd) {
+            return;
+        }
+
+        Long previousEnd = writtenAhead.get(start);
+        if (previousEnd == null || previousEnd < end) {
+            writtenAhead.put(start, end);
+        }
+
+        // Extend the prefix over all the ranges which now continue it
+        Map.Entry<Long, Long> range;
+        long previousContiguousEnd = contiguousEnd;
+        while ((range = writtenAhead.firstEntry()) != null && range.getKey() <= contiguousEnd) {
+            writtenAhead.pollFirstEntry();
+            contiguousEnd = Math.max(contiguousEnd, range.getValue());
+        }
+
+        if (contiguousEnd > previousContiguousEnd) {
+            notifyAll();
+        }
+    }
+
+    // The end of the range the getters may download now
+    long getLookaheadLimit() {
+        return failed ? Long.MAX_VALUE : streamedOffset + lookaheadWindow;
+    }
+
+    // No more ranges will be written, stream what is left of the prefix and stop
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (streamedOffset < fileSize) {
+                long end;
+                synchronized (this) {
+                    while (contiguousEnd == streamedOffset && !finished) {
+                        wait();
+                    }
+                    end = contiguousEnd;
+                }
+
+                if (end == streamedOffset) {
+                    break;
+                }
+                transfer(streamedOffset, end);
+                streamedOffset = end;
+            }
+            if (Utilities.isDebugEnabled()) {
+                Utilities.Debug(MODULE_NAME, "streamed " + streamedOffset + " of " + fileSize + " bytes");
+            }
+        } catch (IOException e) {
+            System.err.println("The stream consumer failed, downloading to the file only " + e.getMessage());
+            failed = true;
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted Exception while streaming " + e.getMessage());
+            failed = true;
+        } finally {
+            try {
+                fileChannel.close();
+                output.close();
+            } catch (IOException e) {
+                System.err.println("There was an error while closing the stream " + e.getMessage());
+            }
+        }
+    }
+
+    private void transfer(long start, long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += fileChannel.transferTo(position, end - position, output);
+        }
+    }
+}
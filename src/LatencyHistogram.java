@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in power of two buckets of nanoseconds, cheap enough to record on the hot path.
+ *
+ * The counts only grow, so a sampler takes the difference of two copies of the buckets to get the histogram
+ * of the interval between them.
+ */
+class LatencyHistogram {
+    static final int BUCKETS = 64;
+    // bucket i counts the durations in [2^(i-1), 2^i) nanoseconds, bucket 0 the durations of 0
+    private final AtomicLongArray counts;
+    private final LongAdder totalNanos;
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.totalNanos = new LongAdder();
+    }
+
+    void record(long nanos) {
+        long duration = Math.max(0, nanos);
+        counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(duration));
+        totalNanos.add(duration);
+    }
+
+    // Add the counts of every bucket to the given ones
+    void addTo(long[] bucketCounts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketCounts[i] += counts.get(i);
+        }
+    }
+
+    long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    // The upper bound of the bucket the given fraction of the durations falls into, 0 without durations
+    static long percentileNanos(long[] bucketCounts, double fraction) {
+        long count = 0;
+        for (long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += bucketCounts[i];
+            if (seen >= Math.max(1, rank)) {
+                return i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
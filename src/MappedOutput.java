@@ -0,0 +1,175 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copies chunks straight into memory mapped windows of the .tmp file, without a write call per chunk.
+ *
+ * The file is pre-sized to the full file size and mapped lazily in windows of WINDOW_SIZE bytes.
+ * A window is forced and dropped as soon as all of its bytes were written, and at most MAX_MAPPED_WINDOWS
+ * are kept mapped, so files bigger than the address space budget are supported.
+ * Dropped windows are unmapped by the garbage collector, as java offers no explicit unmap.
+ *
+ * Copying into a window is done outside of the lock, so several threads may write disjoint ranges in parallel.
+ * A window is pinned while a copy into it runs, and only unpinned windows are dropped, so every copied byte
+ * is in a window which is still mapped when the next checkpoint forces them.
+ * The lock is a ReentrantLock rather than a monitor, as mapping a window blocks on I/O and a monitor
+ * would pin the carrier of a virtual thread.
+ */
+class MappedOutput implements DownloadOutput {
+    private static final String MODULE_NAME = "MappedOutput";
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 16;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final LinkedHashMap<Long, Window> mappedWindows;
+    private final ReentrantLock windowsLock;
+
+    MappedOutput(File file, long fileSize) throws IOException {
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = randomAccessFile.getChannel();
+        this.fileSize = fileSize;
+        // Access ordered, so the least recently used window is the first to be dropped
+        this.mappedWindows = new LinkedHashMap<>(MAX_MAPPED_WINDOWS, 0.75f, true);
+        this.windowsLock = new ReentrantLock();
+
+        // Pre-size the file so every window can be mapped
+        if (randomAccessFile.length() < fileSize) {
+            randomAccessFile.setLength(fileSize);
+        }
+    }
+
+    @Override
+    public long write(List<Chunk> chunks) throws IOException {
+        long writtenBytes = 0;
+
+        for (Chunk chunk : chunks) {
+            long position = chunk.getOffset();
+            int dataOffset = 0;
+            int remaining = (int) chunk.getSize_in_bytes();
+
+            // A chunk may cross a window boundary
+            while (remaining > 0) {
+                long windowIndex = position / WINDOW_SIZE;
+                int windowOffset = (int) (position % WINDOW_SIZE);
+                Window window = acquireWindow(windowIndex);
+                int length = Math.min(remaining, window.size - windowOffset);
+
+                window.buffer.put(windowOffset, chunk.getData(), dataOffset, length);
+                releaseWindow(windowIndex, window, length);
+
+                position += length;
+                dataOffset += length;
+                remaining -= length;
+                writtenBytes += length;
+            }
+        }
+
+        return writtenBytes;
+    }
+
+    @Override
+    public void force() {
+        windowsLock.lock();
+        try {
+            for (Window window : mappedWindows.values()) {
+                window.buffer.force();
+            }
+        } finally {
+            windowsLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        windowsLock.lock();
+        try {
+            force();
+            mappedWindows.clear();
+            fileChannel.close();
+            randomAccessFile.close();
+        } finally {
+            windowsLock.unlock();
+        }
+    }
+
+    // Get the mapped window pinned, mapping it and dropping the least recently used unpinned one as needed
+    private Window acquireWindow(long windowIndex) throws IOException {
+        windowsLock.lock();
+        try {
+            Window window = mappedWindows.get(windowIndex);
+
+            if (window == null) {
+                if (mappedWindows.size() >= MAX_MAPPED_WINDOWS) {
+                    dropLeastRecentlyUsedWindow();
+                }
+
+                long windowStart = windowIndex * WINDOW_SIZE;
+                long windowSize = Math.min(WINDOW_SIZE, fileSize - windowStart);
+                Utilities.Log(MODULE_NAME, "mapping window " + windowStart + " - " + (windowStart + windowSize));
+                window = new Window(fileChannel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize));
+                mappedWindows.put(windowIndex, window);
+            }
+
+            window.writers++;
+            return window;
+        } finally {
+            windowsLock.unlock();
+        }
+    }
+
+    // While every window is pinned the map grows over MAX_MAPPED_WINDOWS, till the copies finish
+    private void dropLeastRecentlyUsedWindow() {
+        Iterator<Window> leastRecentlyUsed = mappedWindows.values().iterator();
+        while (leastRecentlyUsed.hasNext()) {
+            Window window = leastRecentlyUsed.next();
+            if (window.writers == 0) {
+                window.buffer.force();
+                leastRecentlyUsed.remove();
+                return;
+            }
+        }
+    }
+
+    // Unpin the window and count the bytes written into it, and drop it once it is fully written
+    private void releaseWindow(long windowIndex, Window window, int writtenBytes) {
+        windowsLock.lock();
+        try {
+            window.writers--;
+            window.writtenBytes += writtenBytes;
+
+            // a hedged range may write the same bytes twice, so a full window may still have a copy running
+            if (window.writtenBytes >= window.size && window.writers == 0
+                    && mappedWindows.get(windowIndex) == window) {
+                window.buffer.force();
+                mappedWindows.remove(windowIndex);
+            }
+        } finally {
+            windowsLock.unlock();
+        }
+    }
+
+    private static class Window {
+        private final MappedByteBuffer buffer;
+        private final int size;
+        private long writtenBytes;
+        // the copies into this window which are still running
+        private int writers;
+
+        Window(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.size = buffer.capacity();
+            this.writtenBytes = 0;
+            this.writers = 0;
+        }
+    }
+}
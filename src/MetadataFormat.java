@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * The binary format of a metadata snapshot, written and read through NIO buffers.
+ *
+ * magic "IDMD", version, URL, ETag, file size + 1 (0 when unknown), downloaded bytes,
+ * the downloaded ranges - each the gap from the end of the previous range and its length,
+ * the block digests - each the distance from the previous digested block and the digest,
+ * and a CRC32C of everything before it.
+ * Numbers are unsigned varints and strings are a varint length followed by UTF-8 bytes,
+ * a missing ETag is written with length 0 and every other string with its length + 1.
+ *
+ * Ranges are coalesced, so the snapshot grows with the number of gaps and not with the size of the file.
+ * A snapshot which does not pass its checks is rejected as a whole, nothing is deserialized into objects.
+ */
+class MetadataFormat {
+    private static final int MAGIC = 0x49444D44; // "IDMD"
+    private static final byte VERSION = 2;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final int MAX_SNAPSHOT_SIZE = Integer.MAX_VALUE - 8;
+
+    private MetadataFormat() {
+    }
+
+    // Write the metadata into the given file, and force it to the storage device if asked
+    static void write(DownloadableMetadata downloadableMetadata, File metadataFile, boolean force)
+            throws IOException {
+        ByteBuffer buffer = encode(downloadableMetadata);
+        try (FileChannel channel = FileChannel.open(metadataFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(true);
+            }
+        }
+    }
+
+    // Read the metadata snapshot of the given file, an IOException is thrown when it is not a valid snapshot
+    static DownloadableMetadata read(File metadataFile) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(metadataFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_SNAPSHOT_SIZE) {
+                throw new IOException(metadataFile + " is too big to be a metadata snapshot");
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // keep reading till the buffer is full
+            }
+            buffer.flip();
+        }
+
+        try {
+            return decode(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(metadataFile + " is truncated");
+        }
+    }
+
+    static ByteBuffer encode(DownloadableMetadata downloadableMetadata) {
+        byte[] url = downloadableMetadata.getUrl().getBytes(StandardCharsets.UTF_8);
+        String eTag = downloadableMetadata.getETag();
+        byte[] eTagBytes = eTag != null ? eTag.getBytes(StandardCharsets.UTF_8) : null;
+        Map<Long, Long> downloadedRanges = downloadableMetadata.getDownloadedRanges();
+        Map<Long, byte[]> blockDigests = downloadableMetadata.getBlockDigests();
+
+        // An upper bound of the snapshot size, every number taking the longest varint
+        long capacity = Integer.BYTES + 1 + 2 * MAX_VARINT_SIZE + url.length
+                + MAX_VARINT_SIZE + (eTagBytes != null ? eTagBytes.length : 0)
+                + 2 * MAX_VARINT_SIZE
+                + MAX_VARINT_SIZE + 2L * MAX_VARINT_SIZE * downloadedRanges.size()
+                + MAX_VARINT_SIZE + Integer.BYTES;
+        for (byte[] digest : blockDigests.values()) {
+            capacity += 2 * MAX_VARINT_SIZE + digest.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(capacity, MAX_SNAPSHOT_SIZE));
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        putVarLong(buffer, url.length + 1);
+        buffer.put(url);
+        if (eTagBytes != null) {
+            putVarLong(buffer, eTagBytes.length + 1);
+            buffer.put(eTagBytes);
+        } else {
+            putVarLong(buffer, 0);
+        }
+        putVarLong(buffer, downloadableMetadata.getFileSize() + 1);
+        putVarLong(buffer, downloadableMetadata.get_sizeInBytes());
+
+        putVarLong(buffer, downloadedRanges.size());
+        long previousEnd = 0;
+        for (Map.Entry<Long, Long> range : downloadedRanges.entrySet()) {
+            putVarLong(buffer, range.getKey() - previousEnd);
+            putVarLong(buffer, range.getValue() - range.getKey());
+            previousEnd = range.getValue();
+        }
+
+        putVarLong(buffer, blockDigests.size());
+        long previousBlock = 0;
+        for (Map.Entry<Long, byte[]> blockDigest : blockDigests.entrySet()) {
+            putVarLong(buffer, blockDigest.getKey() - previousBlock);
+            putVarLong(buffer, blockDigest.getValue().length);
+            buffer.put(blockDigest.getValue());
+            previousBlock = blockDigest.getKey();
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    static DownloadableMetadata decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES + 1 + Integer.BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a metadata snapshot");
+        }
+        int version = buffer.get(Integer.BYTES);
+        if (version != VERSION) {
+            throw new IOException("unknown metadata snapshot version " + version);
+        }
+
+        // The checksum covers everything before it, so the rest can be trusted after this
+        int crcPosition = buffer.limit() - Integer.BYTES;
+        CRC32C crc = new CRC32C();
+        ByteBuffer checkedBytes = buffer.duplicate();
+        checkedBytes.limit(crcPosition);
+        crc.update(checkedBytes);
+        if (buffer.getInt(crcPosition) != (int) crc.getValue()) {
+            throw new IOException("the metadata snapshot checksum does not match");
+        }
+        buffer.limit(crcPosition);
+        buffer.position(Integer.BYTES + 1);
+
+        String url = getString(buffer);
+        if (url == null) {
+            throw new IOException("the metadata snapshot has no URL");
+        }
+        DownloadableMetadata downloadableMetadata = new DownloadableMetadata(url);
+        downloadableMetadata.setETag(getString(buffer));
+        downloadableMetadata.setFileSize(getVarLong(buffer) - 1);
+        long sizeInBytes = getVarLong(buffer);
+
+        long numberOfRanges = getVarLong(buffer);
+        long previousEnd = 0;
+        for (long i = 0; i < numberOfRanges; i++) {
+            long start = previousEnd + getVarLong(buffer);
+            long end = start + getVarLong(buffer);
+            if (start < previousEnd || end <= start) {
+                throw new IOException("the metadata snapshot ranges are out of order");
+            }
+            downloadableMetadata.appendRange(start, end);
+            previousEnd = end;
+        }
+        if (downloadableMetadata.get_sizeInBytes() != sizeInBytes) {
+            throw new IOException("the metadata snapshot ranges do not add up to " + sizeInBytes + " bytes");
+        }
+
+        long numberOfDigests = getVarLong(buffer);
+        long block = 0;
+        for (long i = 0; i < numberOfDigests; i++) {
+            block += getVarLong(buffer);
+            long digestLength = getVarLong(buffer);
+            if (digestLength > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] digest = new byte[(int) digestLength];
+            buffer.get(digest);
+            downloadableMetadata.putBlockDigest(block, digest);
+        }
+
+        if (buffer.hasRemaining()) {
+            throw new IOException("the metadata snapshot has " + buffer.remaining() + " unexpected bytes");
+        }
+        return downloadableMetadata;
+    }
+
+    // A string of length + 1 bytes, or null for length 0
+    private static String getString(ByteBuffer buffer) throws IOException {
+        long length = getVarLong(buffer);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                (int) (length - 1), StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) (length - 1));
+        return string;
+    }
+
+    // Seven bits at a time, least significant first, the high bit marks that more bytes follow
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    throw new IOException("a number of the metadata snapshot is out of range");
+                }
+                return value;
+            }
+        }
+        throw new IOException("a number of the metadata snapshot is too long");
+    }
+}
@@ -0,0 +1,211 @@
+import Utill.Utilities;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads the range requests of a download over several mirrors of the same file.
+ *
+ * The mirrors are probed with a HEAD request first, and only mirrors whose size and ETag agree with the first
+ * mirror that answered are used, so bytes of different versions of the file are never mixed.
+ * Mirrors without an ETag are compared by their size alone.
+ *
+ * Every request picks a mirror at random, weighted by the throughput measured on it so far, so the segments
+ * are spread in proportion to the speed of the mirrors. A mirror which was not measured yet weighs as much as
+ * the fastest one, so it is tried early. Every failure halves the weight of a mirror until its next success,
+ * and a mirror whose CircuitBreaker is open is not picked while another one is available.
+ */
+class MirrorSelector {
+    private static final String MODULE_NAME = "MirrorSelector";
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+    private static final double FAILURE_PENALTY = 0.5;
+    private final List<Mirror> mirrors;
+    private final long fileSize;
+    private final String eTag;
+
+    private MirrorSelector(List<Mirror> mirrors, long fileSize, String eTag) {
+        this.mirrors = mirrors;
+        this.fileSize = fileSize;
+        this.eTag = eTag;
+    }
+
+    // HEAD every mirror and keep the ones which agree with the first answer, or null if none answered
+    static MirrorSelector probe(List<String> urls) {
+        List<Mirror> mirrors = new ArrayList<>();
+        long fileSize = -1;
+        String eTag = null;
+
+        for (String url : urls) {
+            Mirror mirror = new Mirror(url);
+            if (!mirror.probe()) {
+                continue;
+            }
+
+            if (mirrors.isEmpty()) {
+                fileSize = mirror.size;
+                eTag = mirror.eTag;
+            } else if (mirror.size != fileSize || (eTag != null && mirror.eTag != null && !eTag.equals(mirror.eTag))) {
+                System.err.println("Ignoring mirror " + url + ", its size or ETag differ from " + mirrors.get(0).url);
+                continue;
+            }
+
+            Utilities.Log(MODULE_NAME, "using mirror " + url + " size " + mirror.size + " ETag " + mirror.eTag);
+            mirrors.add(mirror);
+        }
+
+        return mirrors.isEmpty() ? null : new MirrorSelector(mirrors, fileSize, eTag);
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    String getETag() {
+        return eTag;
+    }
+
+    int getNumberOfMirrors() {
+        return mirrors.size();
+    }
+
+    List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    // Pick the mirror of the next request
+    Mirror select() {
+        List<Mirror> available = new ArrayList<>();
+        Mirror leastDelayed = mirrors.get(0);
+        double fastestThroughput = 0;
+
+        for (Mirror mirror : mirrors) {
+            long delay = mirror.circuitBreaker.delayNanos();
+            if (delay == 0) {
+                available.add(mirror);
+            } else if (delay < leastDelayed.circuitBreaker.delayNanos()) {
+                leastDelayed = mirror;
+            }
+            fastestThroughput = Math.max(fastestThroughput, mirror.getThroughput());
+        }
+
+        // Every circuit is open, wait for the first one to let requests through again
+        if (available.isEmpty()) {
+            return leastDelayed;
+        }
+
+        double[] weights = new double[available.size()];
+        double totalWeight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = available.get(i).weight(fastestThroughput);
+            totalWeight += weights[i];
+        }
+
+        double point = ThreadLocalRandom.current().nextDouble() * totalWeight;
+        for (int i = 0; i < weights.length; i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return available.get(i);
+            }
+        }
+
+        return available.get(available.size() - 1);
+    }
+
+    /**
+     * A single mirror, with its measured throughput and failure penalty.
+     */
+    static class Mirror {
+        private final String url;
+        private final String host;
+        private final CircuitBreaker circuitBreaker;
+        private long size;
+        private String eTag;
+        private double throughput; // bytes per second, 0 until measured
+        private double penalty;
+        private volatile boolean multipartSupported;
+
+        Mirror(String url) {
+            this.url = url;
+            this.host = URI.create(url).getHost();
+            this.circuitBreaker = CircuitBreaker.forHost(host);
+            this.size = -1;
+            this.throughput = 0;
+            this.penalty = 1;
+            this.multipartSupported = true;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        // Whether several ranges may be asked for in a single request, until the server shows it does not
+        // answer them as multipart/byteranges
+        boolean isMultipartSupported() {
+            return multipartSupported;
+        }
+
+        void disableMultipart() {
+            multipartSupported = false;
+        }
+
+        synchronized double getThroughput() {
+            return throughput;
+        }
+
+        // Measure a request which received the given bytes in the given time
+        synchronized void recordTransfer(long bytes, long nanos) {
+            if (bytes <= 0 || nanos <= 0) {
+                return;
+            }
+
+            double requestThroughput = bytes * 1e9 / nanos;
+            throughput = throughput == 0 ? requestThroughput
+                    : THROUGHPUT_SMOOTHING * requestThroughput + (1 - THROUGHPUT_SMOOTHING) * throughput;
+            penalty = 1;
+        }
+
+        // Demote the mirror after a failed request
+        synchronized void recordFailure() {
+            penalty *= FAILURE_PENALTY;
+        }
+
+        private synchronized double weight(double fastestThroughput) {
+            double expectedThroughput = throughput > 0 ? throughput : Math.max(1, fastestThroughput);
+            return expectedThroughput * penalty;
+        }
+
+        // Get the size and ETag of the file on the mirror. Returns whether the mirror answered
+        private boolean probe() {
+            HttpURLConnection httpConnection = null;
+
+            try {
+                httpConnection = (HttpURLConnection) new URL(url).openConnection();
+                httpConnection.setRequestMethod("HEAD");
+                size = httpConnection.getContentLengthLong();
+                eTag = httpConnection.getHeaderField("ETag");
+                return size != -1;
+            } catch (IOException e) {
+                System.err.println("There was an IO exception while probing the mirror " + url + " " + e.getMessage());
+                return false;
+            } finally {
+                if (httpConnection != null) {
+                    httpConnection.disconnect();
+                }
+            }
+        }
+    }
+}
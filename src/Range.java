@@ -1,10 +1,9 @@
-import java.io.Serializable;
-
 /**
  * Describes a simple range, with a start, an end, and a length
+ *
+ * The end is exclusive, so two ranges are united only when they touch or overlap.
  */
-class Range implements Serializable {
-    private static final long serialVersionUID = 1L;
+class Range {
     private long start;
     private long end;
 
@@ -36,7 +35,7 @@ class Range implements Serializable {
         // uniting ranges
 
         if (rangeOffsetDifferences < 0) {
-            if( rangeTwoOffset  - rangeOneEndIndex > 1){
+            if( rangeTwoOffset  - rangeOneEndIndex > 0){
                 // range two is bigger than range one
                 resCode = 1;
             }
@@ -50,7 +49,7 @@ class Range implements Serializable {
                 unitedRange = new Range(rangeOneOffset, rangeTwoEndIndex);
             }
         } else {
-            if (rangeOneOffset - rangeTwoEndIndex > 1) {
+            if (rangeOneOffset - rangeTwoEndIndex > 0) {
                 //range one is bigger than range two
                 resCode = -1;
             }
@@ -73,8 +72,7 @@ class Range implements Serializable {
         return (end - start);
     }
 
-    static class UnionResponse implements Serializable {
-        private static final long serialVersionUID = 1L;
+    static class UnionResponse {
         private int m_resCode;
         private Range m_updatedRange;
 
@@ -0,0 +1,103 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append only journal of the ranges written to disk since the last metadata snapshot.
+ *
+ * Every record is a fixed size pair of longs - the start and the (exclusive) end of a written range.
+ * Records are buffered in memory and appended to the journal file in group commits, and once the journal
+ * grows over COMPACTION_SIZE the FileWriter writes a new metadata snapshot and truncates it.
+ * On resume the snapshot is loaded and the journal is replayed over it, a torn record at the end is ignored.
+ *
+ * Records reach the file only when they are committed, after the data they point at was forced,
+ * so the buffer grows when more records come between two checkpoints than it holds.
+ */
+class RangeJournal {
+    private static final String MODULE_NAME = "RangeJournal";
+    private static final int RECORD_SIZE = 2 * Long.BYTES;
+    private static final int BUFFER_SIZE = 1024 * RECORD_SIZE;
+    static final long COMPACTION_SIZE = 4096L * RECORD_SIZE;
+    private final FileChannel journalChannel;
+    private ByteBuffer pendingRecords;
+
+    RangeJournal(String journalFilename) throws IOException {
+        this.journalChannel = FileChannel.open(new File(journalFilename).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.pendingRecords = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    // Buffer a record of a written range till the next commit
+    void append(long start, long end) {
+        if (pendingRecords.remaining() < RECORD_SIZE) {
+            ByteBuffer grownRecords = ByteBuffer.allocateDirect(pendingRecords.capacity() * 2);
+            pendingRecords.flip();
+            grownRecords.put(pendingRecords);
+            pendingRecords = grownRecords;
+        }
+
+        pendingRecords.putLong(start);
+        pendingRecords.putLong(end);
+    }
+
+    // Append the pending records to the journal file, and force it to the storage device if asked
+    void commit(boolean force) throws IOException {
+        flush();
+        if (force) {
+            journalChannel.force(false);
+        }
+    }
+
+    // The size of the journal file, including the pending records
+    long size() throws IOException {
+        return journalChannel.size() + pendingRecords.position();
+    }
+
+    // Drop all the records, after they were compacted into a metadata snapshot
+    void truncate() throws IOException {
+        pendingRecords.clear();
+        journalChannel.truncate(0);
+        journalChannel.force(false);
+    }
+
+    void close() throws IOException {
+        commit(true);
+        journalChannel.close();
+    }
+
+    private void flush() throws IOException {
+        pendingRecords.flip();
+        while (pendingRecords.hasRemaining()) {
+            journalChannel.write(pendingRecords);
+        }
+        pendingRecords.clear();
+    }
+
+    // Add all the ranges recorded in the given journal file to the metadata
+    static void replay(File journalFile, DownloadableMetadata downloadableMetadata) throws IOException {
+        long numberOfRecords = 0;
+
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long start = buffer.getLong();
+                    long end = buffer.getLong();
+                    if (start >= 0 && start < end) {
+                        downloadableMetadata.addRange(new Range(start, end));
+                        numberOfRecords++;
+                    }
+                }
+                buffer.compact();
+            }
+        }
+
+        Utilities.Log(MODULE_NAME, "replayed " + numberOfRecords + " journal records");
+    }
+}
@@ -0,0 +1,514 @@
+import Utill.Utilities;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out range segments to the HTTPRangeGetters on demand.
+ *
+ * The missing ranges are cut into segments of at most segmentSize bytes, and every idle getter asks for the next one.
+ * Once there are no segments left, an idle getter steals the second half of the biggest active assignment,
+ * so all the connections stay busy until the last byte instead of waiting for the slowest one.
+ *
+ * All the ranges handled here are half open - [start, end).
+ *
+ * The scheduler also counts the downloaded bytes and the failed requests, and can ask getters to retire,
+ * which lets the ConnectionTuner change the number of connections while the download runs.
+ *
+ * When an assignment is completed before all of its bytes were received, the rest of it is retried right away
+ * from the last received byte, after a jittered exponential backoff. Retries come before new segments,
+ * and a range is dropped after MAX_RETRIES, to be retried by the next download attempt.
+ *
+ * Near the end of the download, when nothing is left to steal, an idle getter hedges the slowest assignment:
+ * if it runs well below the median throughput, a second getter reads the rest of it over a fresh connection.
+ * Both readers claim the bytes by their file offset against the same position, so every byte is queued once,
+ * and the slower reader stops as soon as the faster one reached the end.
+ *
+ * Stealing and hedging add readers to the download, so neither is done while the ChunkSink is backpressured -
+ * the idle getters wait for the writers to catch up instead. The ConnectionTuner stops adding connections as well.
+ *
+ * In the streaming mode no segment starting past the lookahead limit of the InOrderStreamer is handed out,
+ * and the hedging candidate is the assignment the stream waits for rather than the slowest one.
+ * Once a range is dropped the stream cannot pass it in this attempt, so the rest is scheduled as without streaming,
+ * and the attempt can end and leave the dropped range to the next one.
+ */
+class RangeScheduler {
+    private static final String MODULE_NAME = "RangeScheduler";
+    private static final int MAX_RETRIES = 8;
+    private static final long BASE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(8);
+    private static final long MIN_HEDGE_AGE = TimeUnit.SECONDS.toNanos(1);
+    private static final double HEDGE_RATIO = 0.25;
+    private static final double STREAM_HEAD_HEDGE_RATIO = 0.5;
+    private static final long HEDGE_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int RECENT_RATES = 16;
+    private final ArrayDeque<Range> pendingRanges;
+    private final List<Assignment> activeAssignments;
+    private final long segmentSize;
+    private final long minimalStealSize;
+    private final PriorityQueue<Retry> retries;
+    private final ArrayDeque<Double> recentRates;
+    private final ReentrantLock lock;
+    private final Condition workChanged;
+    private final LongAdder downloadedBytes;
+    private final AtomicInteger numberOfFailures;
+    private final AtomicInteger numberOfRetries;
+    private final ChunkSink chunkSink;
+    private InOrderStreamer inOrderStreamer;
+    private int pendingRetirements;
+
+    RangeScheduler(List<Range> missingRanges, long segmentSize, long minimalStealSize, ChunkSink chunkSink) {
+        this.pendingRanges = new ArrayDeque<>(missingRanges);
+        this.activeAssignments = new ArrayList<>();
+        this.segmentSize = segmentSize;
+        this.minimalStealSize = minimalStealSize;
+        this.retries = new PriorityQueue<>(Comparator.comparingLong(retry -> retry.notBefore));
+        this.recentRates = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.workChanged = lock.newCondition();
+        this.downloadedBytes = new LongAdder();
+        this.numberOfFailures = new AtomicInteger(0);
+        this.numberOfRetries = new AtomicInteger(0);
+        this.chunkSink = chunkSink;
+        this.pendingRetirements = 0;
+    }
+
+    // Get the next piece of work, or null when there is nothing left worth a new connection
+    // or the calling getter should retire. Waits for backed off retries and for slow assignments to hedge
+    // when there is nothing else to do
+    Assignment next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (pendingRetirements > 0) {
+                    pendingRetirements--;
+                    return null;
+                }
+
+                Assignment assignment = poll();
+                if (assignment != null) {
+                    return assignment;
+                }
+
+                long idleDelay = idleDelayNanos();
+                if (idleDelay < 0) {
+                    return null;
+                }
+                workChanged.awaitNanos(idleDelay);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand out the segments in the order the given streamer consumes them
+    void streamTo(InOrderStreamer inOrderStreamer) {
+        lock.lock();
+        try {
+            this.inOrderStreamer = inOrderStreamer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Get the next piece of work without waiting, or null when nothing can be started right now
+    Assignment poll() {
+        lock.lock();
+        try {
+            Assignment assignment = nextReadyRetry();
+            if (assignment == null) {
+                assignment = nextPendingSegment();
+            }
+            if (assignment == null && !isBackpressured()) {
+                assignment = stealFromBiggestAssignment();
+            }
+            if (assignment != null) {
+                activeAssignments.add(assignment);
+                return assignment;
+            }
+
+            return isBackpressured() ? null : hedgeSlowestAssignment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hand out the small pending gaps following the given assignment, to be downloaded by the same request.
+    // Whole gaps are taken in file order while all of them together stay within a segment,
+    // up to maxAssignments in all. Only the requested ranges are sent, so the distance between them is free
+    List<Assignment> pollNearbyGaps(Assignment assignment, int maxAssignments) {
+        lock.lock();
+        try {
+            List<Assignment> gaps = new ArrayList<>();
+            long batchSize = assignment.remaining();
+            long previousEnd = assignment.getEnd();
+
+            Range range;
+            while (gaps.size() + 1 < maxAssignments
+                    && (range = pendingRanges.peek()) != null
+                    && range.getStart() >= previousEnd
+                    && batchSize + range.getLength() <= segmentSize
+                    && (inOrderStreamer == null || range.getStart() < inOrderStreamer.getLookaheadLimit())) {
+                pendingRanges.poll();
+                Assignment gap = new Assignment(range.getStart(), range.getEnd(), 0, downloadedBytes);
+                activeAssignments.add(gap);
+                gaps.add(gap);
+                batchSize += range.getLength();
+                previousEnd = range.getEnd();
+            }
+
+            return gaps;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How long an idle reader should wait before polling again, or -1 when no more work can come up.
+    // Failed assignments are retried by their own readers, so only waiting retries and assignments
+    // which may still be hedged keep an idle reader around, as do segments held back by the streaming lookahead
+    long idleDelayNanos() {
+        lock.lock();
+        try {
+            long idleDelay = pendingRanges.isEmpty() ? -1 : HEDGE_CHECK_INTERVAL;
+            for (Assignment assignment : activeAssignments) {
+                if (assignment.readers == 1) {
+                    idleDelay = HEDGE_CHECK_INTERVAL;
+                    break;
+                }
+            }
+
+            Retry retry = retries.peek();
+            if (retry != null) {
+                long retryDelay = Math.max(0, retry.notBefore - System.nanoTime());
+                idleDelay = idleDelay < 0 ? retryDelay : Math.min(idleDelay, retryDelay);
+            }
+            return idleDelay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Mark the given assignment as no longer being worked on by the calling reader,
+    // once its last reader is gone the bytes it did not receive are retried
+    void complete(Assignment assignment) {
+        lock.lock();
+        try {
+            assignment.readers--;
+            if (assignment.readers > 0) {
+                return;
+            }
+            activeAssignments.remove(assignment);
+            workChanged.signalAll();
+
+            Range unfinishedRange = assignment.takeUnfinishedRange();
+            if (unfinishedRange == null) {
+                recentRates.addLast(assignment.bytesPerSecond(System.nanoTime()));
+                if (recentRates.size() > RECENT_RATES) {
+                    recentRates.removeFirst();
+                }
+                return;
+            }
+
+            // Only attempts which did not receive anything count towards MAX_RETRIES
+            int attempt = assignment.hasProgress() ? 1 : assignment.getAttempt() + 1;
+            if (attempt > MAX_RETRIES) {
+                Utilities.Log(MODULE_NAME, "giving up on range " + unfinishedRange.getStart() + " - "
+                        + unfinishedRange.getEnd() + " after " + MAX_RETRIES + " retries");
+                if (inOrderStreamer != null) {
+                    // the lookahead limit would never move again, and hold back the remaining segments forever
+                    Utilities.Log(MODULE_NAME, "lifting the streaming lookahead for the rest of this attempt");
+                    inOrderStreamer = null;
+                }
+                return;
+            }
+
+            long backoff = backoffNanos(attempt);
+            Utilities.Log(MODULE_NAME, "retrying range " + unfinishedRange.getStart() + " - "
+                    + unfinishedRange.getEnd() + " in " + TimeUnit.NANOSECONDS.toMillis(backoff) + " ms");
+            retries.add(new Retry(unfinishedRange, attempt, System.nanoTime() + backoff));
+            numberOfRetries.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ask the given number of getters to stop once they finish their current assignment
+    void retireGetters(int numberOfGetters) {
+        lock.lock();
+        try {
+            pendingRetirements += numberOfGetters;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Count a failed or refused request
+    void reportFailure() {
+        numberOfFailures.incrementAndGet();
+    }
+
+    int getNumberOfFailures() {
+        return numberOfFailures.get();
+    }
+
+    int getNumberOfRetries() {
+        return numberOfRetries.get();
+    }
+
+    long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
+    // Whether the writers fall behind, so more readers would not download any faster
+    boolean isBackpressured() {
+        return chunkSink.isBackpressured();
+    }
+
+    // Exponential backoff with jitter - a random delay between half and all of BASE_BACKOFF * 2^(attempt - 1),
+    // capped by MAX_BACKOFF
+    private static long backoffNanos(int attempt) {
+        long maxBackoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(maxBackoff / 2, maxBackoff + 1);
+    }
+
+    // Take the retry with the earliest due time, if it is due
+    private Assignment nextReadyRetry() {
+        Retry retry = retries.peek();
+        if (retry == null || retry.notBefore - System.nanoTime() > 0) {
+            return null;
+        }
+
+        retries.poll();
+        return new Assignment(retry.range.getStart(), retry.range.getEnd(), retry.attempt, downloadedBytes);
+    }
+
+    // Cut the next segment from the head of the pending ranges
+    private Assignment nextPendingSegment() {
+        Range range = pendingRanges.peek();
+        if (range == null || (inOrderStreamer != null && range.getStart() >= inOrderStreamer.getLookaheadLimit())) {
+            return null;
+        }
+        pendingRanges.poll();
+
+        long segmentEnd = Math.min(range.getEnd(), range.getStart() + segmentSize);
+        if (segmentEnd < range.getEnd()) {
+            pendingRanges.addFirst(new Range(segmentEnd, range.getEnd()));
+        }
+
+        return new Assignment(range.getStart(), segmentEnd, 0, downloadedBytes);
+    }
+
+    // Split the active assignment with the most remaining bytes and take its second half
+    private Assignment stealFromBiggestAssignment() {
+        Assignment victim = null;
+        long victimRemaining = 0;
+
+        for (Assignment assignment : activeAssignments) {
+            long remaining = assignment.remaining();
+            if (remaining > victimRemaining) {
+                victim = assignment;
+                victimRemaining = remaining;
+            }
+        }
+
+        if (victim == null) {
+            return null;
+        }
+
+        Range stolenRange = victim.splitInHalf(minimalStealSize);
+        if (stolenRange == null) {
+            return null;
+        }
+
+        Utilities.Log(MODULE_NAME, "stealing range " + stolenRange.getStart() + " - " + stolenRange.getEnd());
+        return new Assignment(stolenRange.getStart(), stolenRange.getEnd(), 0, downloadedBytes);
+    }
+
+    // Add a second reader to the slowest assignment if it is far below the median throughput
+    // of the active and the recently completed assignments, or return null.
+    // When streaming, only the assignment holding the head of the stream is a candidate, at a milder ratio
+    private Assignment hedgeSlowestAssignment() {
+        long now = System.nanoTime();
+        List<Double> rates = new ArrayList<>(recentRates);
+        Assignment slowest = null;
+        double slowestRate = Double.MAX_VALUE;
+        double hedgeRatio = HEDGE_RATIO;
+
+        if (inOrderStreamer != null) {
+            Assignment head = streamHeadAssignment();
+            if (head == null || head.readers > 1 || head.isDone() || now - head.startTime < MIN_HEDGE_AGE) {
+                return null;
+            }
+            slowest = head;
+            slowestRate = head.bytesPerSecond(now);
+            hedgeRatio = STREAM_HEAD_HEDGE_RATIO;
+        }
+
+        for (Assignment assignment : activeAssignments) {
+            if (now - assignment.startTime < MIN_HEDGE_AGE) {
+                continue;
+            }
+
+            double rate = assignment.bytesPerSecond(now);
+            rates.add(rate);
+            if (inOrderStreamer == null && assignment.readers == 1 && !assignment.isDone() && rate < slowestRate) {
+                slowest = assignment;
+                slowestRate = rate;
+            }
+        }
+
+        // A single assignment has nothing to be compared with
+        if (slowest == null || rates.size() < 2) {
+            return null;
+        }
+
+        Collections.sort(rates);
+        double medianRate = rates.get(rates.size() / 2);
+        if (slowestRate >= medianRate * hedgeRatio) {
+            return null;
+        }
+
+        Utilities.Log(MODULE_NAME, String.format("hedging range %d - %d at %.0f B/s, the median is %.0f B/s",
+                slowest.getPosition(), slowest.getEnd(), slowestRate, medianRate));
+        slowest.readers++;
+        return slowest;
+    }
+
+    // The unfinished assignment with the lowest position, the one the stream is most likely waiting for
+    private Assignment streamHeadAssignment() {
+        Assignment head = null;
+        long headPosition = Long.MAX_VALUE;
+
+        for (Assignment assignment : activeAssignments) {
+            long position = assignment.getPosition();
+            if (!assignment.isDone() && position < headPosition) {
+                head = assignment;
+                headPosition = position;
+            }
+        }
+
+        return head;
+    }
+
+    /**
+     * A range currently owned by a single getter.
+     *
+     * The owner advances the position as it receives data, while other getters may shrink the end by stealing.
+     */
+    static class Assignment {
+        private final long start;
+        private long position;
+        private long end;
+        private final int attempt;
+        private final long startTime;
+        private final LongAdder downloadedBytes;
+        private int readers; // Guarded by the scheduler lock
+
+        Assignment(long start, long end, int attempt, LongAdder downloadedBytes) {
+            this.start = start;
+            this.position = start;
+            this.end = end;
+            this.attempt = attempt;
+            this.startTime = System.nanoTime();
+            this.downloadedBytes = downloadedBytes;
+            this.readers = 1;
+        }
+
+        // The first byte nobody received yet, where a new reader should start its request
+        synchronized long getPosition() {
+            return position;
+        }
+
+        int getAttempt() {
+            return attempt;
+        }
+
+        synchronized boolean hasProgress() {
+            return position > start;
+        }
+
+        synchronized long getEnd() {
+            return end;
+        }
+
+        synchronized long remaining() {
+            return end - position;
+        }
+
+        synchronized boolean isDone() {
+            return position >= end;
+        }
+
+        // Claim the length bytes received at the given offset into the chunk. Bytes another reader already
+        // claimed, or beyond the end, are dropped and the rest is moved to the start of the chunk.
+        // Returns the claimed size, 0 when none of the bytes are needed
+        synchronized int claim(Chunk chunk, long offset, int length) {
+            long claimStart = Math.max(offset, position);
+            long claimEnd = Math.min(offset + length, end);
+            if (claimEnd <= claimStart) {
+                return 0;
+            }
+
+            int claimed = (int) (claimEnd - claimStart);
+            int skipped = (int) (claimStart - offset);
+            if (skipped > 0) {
+                System.arraycopy(chunk.getData(), skipped, chunk.getData(), 0, claimed);
+            }
+            chunk.set(claimStart, claimed);
+            position = claimEnd;
+            downloadedBytes.add(claimed);
+            return claimed;
+        }
+
+        // The throughput of the assignment since it was handed out
+        synchronized double bytesPerSecond(long now) {
+            return (position - start) * 1e9 / Math.max(1, now - startTime);
+        }
+
+        // Give away the second half of the remaining bytes, or null if both halves would be too small
+        synchronized Range splitInHalf(long minimalSize) {
+            long remaining = end - position;
+            if (remaining < minimalSize * 2) {
+                return null;
+            }
+
+            long splitPoint = position + remaining / 2;
+            Range stolenRange = new Range(splitPoint, end);
+            end = splitPoint;
+            return stolenRange;
+        }
+
+        // Give away the bytes which were not received, or null if the assignment is done
+        synchronized Range takeUnfinishedRange() {
+            if (position >= end) {
+                return null;
+            }
+
+            Range unfinishedRange = new Range(position, end);
+            end = position;
+            return unfinishedRange;
+        }
+    }
+
+    private static class Retry {
+        private final Range range;
+        private final int attempt;
+        private final long notBefore;
+
+        Retry(Range range, int attempt, long notBefore) {
+            this.range = range;
+            this.attempt = attempt;
+            this.notBefore = notBefore;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import Utill.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits the .tmp file into stripes of STRIPE_SIZE bytes, dealt round robin to a number of FileWriters.
+ *
+ * Every writer has its own ChunkRing, thread, range journal and (in the CHANNEL output mode) file channel,
+ * so writing scales with the number of writers instead of being bound by a single thread.
+ * A connection fills a stripe sequentially, so neighbouring chunks still reach the same writer and are gathered.
+ * A chunk crossing a stripe boundary is split in two, so every byte of a stripe is written (and hashed) by its writer.
+ *
+ * The writers do not share the metadata. Every writer publishes the ranges and the block digests of each
+ * checkpoint into lock free collections, which are merged into the DownloadableMetadata only when a metadata
+ * snapshot is written.
+ *
+ * The rings share the byte budget of the download equally. The sink is backpressured while any of them
+ * is filled above its high watermark - a writer which falls behind slows down all the reads.
+ *
+ * The writers count the written bytes and time their writes, checkpoints and snapshots here,
+ * and the DownloadMetrics sample them from its own thread.
+ */
+class StripedWriters implements ChunkSink {
+    private static final String MODULE_NAME = "StripedWriters";
+    static final long STRIPE_SIZE = 1024 * 1024;
+    private final DownloadableMetadata downloadableMetadata;
+    private final List<ChunkRing> chunkRings;
+    private final List<FileWriter> fileWriters;
+    private final List<DownloadOutput> outputs;
+    private final List<Thread> fileWriterThreads;
+    private final ChunkPool chunkPool;
+    private final ConcurrentLinkedQueue<Range> checkpointedRanges;
+    private final ConcurrentHashMap<Long, byte[]> checkpointedDigests;
+    private final LongAdder writtenBytes;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram checkpointLatency;
+    private final LatencyHistogram snapshotLatency;
+    private final InOrderStreamer inOrderStreamer;
+
+    StripedWriters(
+            DownloadableMetadata downloadableMetadata,
+            int numberOfWriters,
+            long ringBudgetBytes,
+            ChunkPool chunkPool,
+            FileWriter.OutputMode outputMode,
+            FileWriter.SyncPolicy syncPolicy,
+            long syncIntervalBytes,
+            String digestAlgorithm,
+            InOrderStreamer inOrderStreamer) throws IOException {
+        this.downloadableMetadata = downloadableMetadata;
+        this.chunkRings = new ArrayList<>(numberOfWriters);
+        this.fileWriters = new ArrayList<>(numberOfWriters);
+        this.outputs = new ArrayList<>();
+        this.fileWriterThreads = new ArrayList<>(numberOfWriters);
+        this.chunkPool = chunkPool;
+        this.checkpointedRanges = new ConcurrentLinkedQueue<>();
+        this.checkpointedDigests = new ConcurrentHashMap<>();
+        this.writtenBytes = new LongAdder();
+        this.writeLatency = new LatencyHistogram();
+        this.checkpointLatency = new LatencyHistogram();
+        this.snapshotLatency = new LatencyHistogram();
+        this.inOrderStreamer = inOrderStreamer;
+
+        // create tempFile
+        String tempFileName = downloadableMetadata.getFilename() + ".tmp";
+        File tempFile = new File(tempFileName);
+        if (!tempFile.createNewFile()) {
+            Utilities.Log(MODULE_NAME, "Temp file exists... ");
+        }
+
+        // The mapped windows are shared by all the writers, channels are not as their position is shared
+        DownloadOutput sharedOutput = outputMode == FileWriter.OutputMode.MAPPED
+                ? new MappedOutput(tempFile, IdcDm.fileSize) : null;
+        if (sharedOutput != null) {
+            outputs.add(sharedOutput);
+        }
+
+        // The hashers read blocks downloaded by a previous attempt from this copy, the metadata changes meanwhile
+        TreeMap<Long, Long> initiallyDownloadedRanges = downloadableMetadata.copyDownloadedRanges();
+
+        Utilities.Log(MODULE_NAME, "open " + numberOfWriters + " " + outputMode + " writers to file: " + tempFileName);
+        for (int i = 0; i < numberOfWriters; i++) {
+            DownloadOutput output = sharedOutput;
+            if (output == null) {
+                output = new ChannelOutput(tempFile);
+                outputs.add(output);
+            }
+
+            ChunkRing chunkRing = new ChunkRing(ringBudgetBytes, HTTPRangeGetter.CHUNK_SIZE);
+            chunkRings.add(chunkRing);
+            BlockHasher blockHasher = new BlockHasher(digestAlgorithm, tempFile, IdcDm.fileSize,
+                    initiallyDownloadedRanges);
+            fileWriters.add(new FileWriter(this, output, blockHasher, downloadableMetadata.getJournalFilename(i),
+                    chunkRing, chunkPool, syncPolicy, syncIntervalBytes));
+        }
+    }
+
+    void start(ThreadFactory threadFactory) {
+        for (FileWriter fileWriter : fileWriters) {
+            Thread fileWriterThread = threadFactory.newThread(fileWriter);
+            fileWriterThreads.add(fileWriterThread);
+            fileWriterThread.start();
+        }
+    }
+
+    @Override
+    public void put(Chunk chunk) throws InterruptedException {
+        long offset = chunk.getOffset();
+        int size = (int) chunk.getSize_in_bytes();
+        long stripeEnd = (offset / STRIPE_SIZE + 1) * STRIPE_SIZE;
+
+        // A chunk is much smaller than a stripe, so it crosses at most one boundary
+        if (offset + size > stripeEnd) {
+            int headSize = (int) (stripeEnd - offset);
+            Chunk tail = chunkPool.acquire();
+            System.arraycopy(chunk.getData(), headSize, tail.getData(), 0, size - headSize);
+            tail.set(stripeEnd, size - headSize);
+            chunk.set(offset, headSize);
+            putInStripe(tail);
+        }
+
+        putInStripe(chunk);
+    }
+
+    @Override
+    public boolean offer(Chunk chunk, Runnable onRoom) {
+        long offset = chunk.getOffset();
+        int size = (int) chunk.getSize_in_bytes();
+        long stripeEnd = (offset / STRIPE_SIZE + 1) * STRIPE_SIZE;
+
+        if (offset + size > stripeEnd) {
+            int headSize = (int) (stripeEnd - offset);
+            Chunk tail = chunkPool.tryAcquire(onRoom);
+            if (tail == null) {
+                return false;
+            }
+            System.arraycopy(chunk.getData(), headSize, tail.getData(), 0, size - headSize);
+            tail.set(stripeEnd, size - headSize);
+            if (!ringOf(tail).offer(tail, onRoom)) {
+                chunkPool.release(tail);
+                return false;
+            }
+            chunk.set(offset, headSize); // the tail is queued, only the head is left
+        }
+
+        return ringOf(chunk).offer(chunk, onRoom);
+    }
+
+    private void putInStripe(Chunk chunk) throws InterruptedException {
+        ringOf(chunk).put(chunk);
+    }
+
+    private ChunkRing ringOf(Chunk chunk) {
+        int stripe = (int) ((chunk.getOffset() / STRIPE_SIZE) % chunkRings.size());
+        return chunkRings.get(stripe);
+    }
+
+    @Override
+    public boolean isBackpressured() {
+        for (ChunkRing chunkRing : chunkRings) {
+            if (chunkRing.isCongested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Stop the writers once they wrote everything queued, and leave a single metadata snapshot behind
+    void close() throws InterruptedException, IOException {
+        try {
+            // mark end of every ring with -1 offset
+            for (ChunkRing chunkRing : chunkRings) {
+                chunkRing.put(new Chunk(new byte[0], -1, 0));
+            }
+
+            for (Thread fileWriterThread : fileWriterThreads) {
+                fileWriterThread.join();
+            }
+        } finally {
+            for (DownloadOutput output : outputs) {
+                output.close();
+            }
+        }
+
+        for (int i = 0; i < chunkRings.size(); i++) {
+            ChunkRing chunkRing = chunkRings.get(i);
+            Utilities.Log(MODULE_NAME, "writer " + i + " made the getters wait " + chunkRing.getProducerStalls()
+                    + " times, " + TimeUnit.NANOSECONDS.toMillis(chunkRing.getProducerStalledNanos()) + " ms");
+        }
+
+        // Every journal is contained in the snapshot, including those of a previous attempt with more writers
+        writeMetadataSnapshot();
+        for (File journalFile : downloadableMetadata.getJournalFiles()) {
+            if (!journalFile.delete()) {
+                Utilities.Log(MODULE_NAME, "Delete operation of " + journalFile.getName() + " has failed.");
+            }
+        }
+    }
+
+    // Called by a writer after a checkpoint made the given ranges durable
+    void publish(List<Range> ranges, Map<Long, byte[]> blockDigests) {
+        checkpointedRanges.addAll(ranges);
+        checkpointedDigests.putAll(blockDigests);
+    }
+
+    // Merge the published ranges and write the whole metadata into the metadata file.
+    // Writers compact their journals rarely, so they simply take turns here
+    synchronized void writeMetadataSnapshot() throws IOException {
+        DownloadEvents.MetadataSnapshot snapshotEvent = new DownloadEvents.MetadataSnapshot();
+        snapshotEvent.begin();
+        long snapshotStart = System.nanoTime();
+        Range range;
+        while ((range = checkpointedRanges.poll()) != null) {
+            downloadableMetadata.addRange(range);
+        }
+
+        Iterator<Map.Entry<Long, byte[]>> blockDigests = checkpointedDigests.entrySet().iterator();
+        while (blockDigests.hasNext()) {
+            Map.Entry<Long, byte[]> blockDigest = blockDigests.next();
+            downloadableMetadata.putBlockDigest(blockDigest.getKey(), blockDigest.getValue());
+            blockDigests.remove();
+        }
+
+        String metadataFilename = downloadableMetadata.getMetadataFilename();
+        Utilities.Log(MODULE_NAME, "writing metadata snapshot " + metadataFilename);
+        MetadataFormat.write(downloadableMetadata, new File(metadataFilename + ".tmp"), true);
+
+        // to handle corrupted temp file - renaming metadata.tmp file to metadata after writing
+        FileWriter.renameTmp(metadataFilename);
+
+        snapshotLatency.record(System.nanoTime() - snapshotStart);
+        snapshotEvent.metadataFile = metadataFilename;
+        snapshotEvent.ranges = downloadableMetadata.getNumberOfRanges();
+        snapshotEvent.commit();
+    }
+
+    // Called by a writer once the range [start, end) is in the file, so the streaming mode can pass it on
+    void reportWritten(long start, long end) {
+        if (inOrderStreamer != null) {
+            inOrderStreamer.addWrittenRange(start, end);
+        }
+    }
+
+    // Count written bytes, the DownloadMetrics show the progress
+    void addWrittenBytes(long size) {
+        writtenBytes.add(size);
+    }
+
+    long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    // The bytes of the chunks the writers did not finish with yet
+    long getBufferedBytes() {
+        long bufferedBytes = 0;
+        for (ChunkRing chunkRing : chunkRings) {
+            bufferedBytes += chunkRing.getBytesInFlight();
+        }
+        return bufferedBytes;
+    }
+
+    long getBufferBudget() {
+        long bufferBudget = 0;
+        for (ChunkRing chunkRing : chunkRings) {
+            bufferBudget += chunkRing.getByteBudget();
+        }
+        return bufferBudget;
+    }
+
+    // Of every gathered write into the output
+    LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    // Of every checkpoint of a writer, forcing the output and committing the journal
+    LatencyHistogram getCheckpointLatency() {
+        return checkpointLatency;
+    }
+
+    LatencyHistogram getSnapshotLatency() {
+        return snapshotLatency;
+    }
+}
@@ -1,54 +1,113 @@
-
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
  *
- * This thread-safe bucket should support the following methods:
+ * This thread-safe bucket supports take(n): remove n tokens from the bucket (blocks until n tokens are available
+ * and taken). A token is a byte, and the bucket refills continuously at bytesPerSecond up to burstSize tokens.
  *
- * - take(n): remove n tokens from the bucket (blocks until n tokens are available and taken)
- * - set(n): set the bucket to contain n tokens (to allow "hard" rate limiting)
- * - add(n): add n tokens to the bucket (to allow "soft" rate limiting)
- * - terminate(): mark the bucket as terminated (used to communicate between threads)
- * - terminated(): return true if the bucket is terminated, false otherwise
+ * The bucket is implemented as a GCRA (https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm): instead of
+ * a counter refilled by another thread, it keeps the theoretical arrival time of the next byte in System.nanoTime
+ * units. A taker reserves its tokens with a single compare and set, which also queues the takers fairly in their
+ * arrival order, and then parks exactly until its reservation is due.
  *
+ * The time the takers of all the buckets spent waiting is counted process wide, for the DownloadMetrics.
  */
 class TokenBucket {
-    private AtomicLong pm_availableNumberOfTokens;
-    private boolean infinitTokens;
-    private boolean pm_bucketIsTerminated = false;
-    private static final String MODULE_NAME = "TokenBucket";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final LongAdder BLOCKED_NANOS = new LongAdder();
+    private final boolean infinitTokens;
+    private final long bytesPerSecond;
+    private final long burstToleranceNanos;
+    private final AtomicLong theoreticalArrivalTime;
+
+    private TokenBucket() {
+        this.infinitTokens = true;
+        this.bytesPerSecond = Long.MAX_VALUE;
+        this.burstToleranceNanos = 0;
+        this.theoreticalArrivalTime = new AtomicLong(0);
+    }
+
+    TokenBucket(long bytesPerSecond, long burstSize) {
+        this.infinitTokens = false;
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstToleranceNanos = nanosFor(burstSize);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
 
-    TokenBucket(boolean infinityTokens) {
-        this.infinitTokens = infinityTokens;
-        this.pm_availableNumberOfTokens = new AtomicLong(0);
+    // A bucket which never limits
+    static TokenBucket unlimited() {
+        return new TokenBucket();
     }
 
-    void take(long tokens) {
-        if (!infinitTokens) // Check for infinite mode, no limit exist
+    void take(long tokens) throws InterruptedException {
+        if (infinitTokens) // Check for infinite mode, no limit exist
         {
-            // If tokens are available, give them back to the user, else wait for tokens to increase
-            while (pm_availableNumberOfTokens.updateAndGet(value -> value >= tokens ? value - tokens : value) < tokens) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    System.err.println( "Interrupted Exception while sleep");
-                }
+            return;
+        }
+
+        awaitTokens(reserve(tokens));
+    }
+
+    // Reserve the tokens without waiting, returns the System.nanoTime at which they are due
+    long reserve(long tokens) {
+        // the bucket is full at the theoretical arrival time, so the reservation is due
+        // once the time is within the burst tolerance of it
+        long now = System.nanoTime();
+        long previousArrivalTime;
+        long nextArrivalTime;
+        do {
+            previousArrivalTime = theoreticalArrivalTime.get();
+            nextArrivalTime = Math.max(previousArrivalTime, now) + nanosFor(tokens);
+        } while (!theoreticalArrivalTime.compareAndSet(previousArrivalTime, nextArrivalTime));
+
+        return nextArrivalTime - burstToleranceNanos;
+    }
+
+    boolean isUnlimited() {
+        return infinitTokens;
+    }
+
+    // Park the calling thread until the given System.nanoTime
+    private static void parkUntil(long dueTime) throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = dueTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(TokenBucket.class, waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
         }
     }
 
-    // Set termination status
-    void terminate() {
-        pm_bucketIsTerminated = true;
+    // Park until reserved tokens are due, counting the time a taker was blocked
+    static void awaitTokens(long dueTime) throws InterruptedException {
+        long parkStart = System.nanoTime();
+        if (dueTime - parkStart <= 0) {
+            return;
+        }
+
+        try {
+            parkUntil(dueTime);
+        } finally {
+            BLOCKED_NANOS.add(System.nanoTime() - parkStart);
+        }
+    }
+
+    // Count the time a taker which does not park, like an asynchronous connection, waits for its tokens
+    static void addBlockedNanos(long nanos) {
+        BLOCKED_NANOS.add(nanos);
     }
 
-    boolean terminated() {
-        return pm_bucketIsTerminated;
+    // The time all the takers spent waiting for their tokens
+    static long getBlockedNanos() {
+        return BLOCKED_NANOS.sum();
     }
 
-    // Add given tokens to bucket(soft limit implementation)
-    void add(long tokens) {
-        pm_availableNumberOfTokens.getAndAdd(tokens);
+    // The time it takes to refill the given number of tokens
+    private long nanosFor(long tokens) {
+        return (long) ((double) tokens * NANOS_PER_SECOND / bytesPerSecond);
     }
 }
@@ -1,65 +1,212 @@
 package Utill;
 import java.io.*;
-import java.sql.Date;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * An asynchronous logger into IdcDm.log.
+ *
+ * A log call only stores the time, level, module and message into a slot of a lock free ring buffer,
+ * and a single background thread formats the lines and writes them, so concurrent callers
+ * never share the writer. The timestamp is formatted once per second and reused.
+ *
+ * Messages below the log level are dropped before they are queued. Callers building an expensive
+ * debug message check isDebugEnabled first, so a disabled message costs nothing.
+ * When the ring is full, debug messages are dropped and counted, while other messages wait for room.
+ *
+ * Everything queued is written when the log is closed, and at the latest when the JVM exits.
+ */
 public class Utilities {
     private final static String LOG_FILE_NAME = "IdcDm.log";
-    private static FileWriter logFileWriter;
-    private static BufferedWriter logFileOutPutStream;
+    private final static int RING_SIZE = 8192;
+    private final static long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private final static DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
-    // Log format for tracking and debugging
-    public static void Log(String i_moduleName ,String i_Message) {
-        if(logFileOutPutStream == null){
-            try {
-                logFileWriter = new FileWriter(LOG_FILE_NAME);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            logFileOutPutStream = new BufferedWriter(logFileWriter);
+    public enum Level {
+        DEBUG, INFO, ERROR
+    }
+
+    private static volatile Level logLevel = Level.INFO;
+
+    // The ring, a slot is free for the producer of position p when its sequence is p,
+    // and ready for the flusher when its sequence is p + 1
+    private final static AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+    private final static long[] times = new long[RING_SIZE];
+    private final static Level[] levels = new Level[RING_SIZE];
+    private final static String[] moduleNames = new String[RING_SIZE];
+    private final static String[] messages = new String[RING_SIZE];
+    private final static AtomicLong tail = new AtomicLong();
+    private static long head;
+    private final static AtomicLong droppedMessages = new AtomicLong();
+
+    private static Writer logFileOutPutStream;
+    private static Thread flusherThread;
+    private static volatile boolean closed;
+    private static long cachedSecond = -1;
+    private static String cachedTimestamp;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sequences.set(i, i);
         }
-        Date timeStamp = new Date(System.currentTimeMillis());
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        String logMessage = timeStamp + " " + sdf.format(cal.getTime())+" - " + i_moduleName + " " + i_Message + "\n";
         try {
-            logFileOutPutStream.write(logMessage);
+            logFileOutPutStream = new BufferedWriter(new FileWriter(LOG_FILE_NAME), 64 * 1024);
         } catch (IOException e) {
-            System.err.println(e.getMessage());
+            System.err.println("Could not open " + LOG_FILE_NAME + " " + e.getMessage());
+        }
+        flusherThread = new Thread(Utilities::flushLoop, "Logger");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Utilities::closeLogFile, "Logger shutdown"));
+    }
+
+    public static void setLogLevel(Level level) {
+        logLevel = level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return logLevel == Level.DEBUG;
+    }
+
+    // Debug messages are off by default, guard expensive ones with isDebugEnabled
+    public static void Debug(String i_moduleName, String i_Message) {
+        if (isDebugEnabled()) {
+            enqueue(Level.DEBUG, i_moduleName, i_Message);
+        }
+    }
+
+    // Log format for tracking and debugging
+    public static void Log(String i_moduleName ,String i_Message) {
+        if (logLevel != Level.ERROR) {
+            enqueue(Level.INFO, i_moduleName, i_Message);
         }
     }
 
     // Error Log format for tracking and debugging
     public static void ErrorLog(String i_moduleName ,String i_Message){
-        if(logFileOutPutStream == null){
-            try {
-                logFileWriter = new FileWriter(LOG_FILE_NAME);
-            } catch (IOException e) {
-                e.printStackTrace();
+        enqueue(Level.ERROR, i_moduleName, i_Message);
+    }
+
+    // Claim the next free slot of the ring and fill it
+    private static void enqueue(Level level, String moduleName, String message) {
+        if (closed) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position & (RING_SIZE - 1));
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    times[slot] = time;
+                    levels[slot] = level;
+                    moduleNames[slot] = moduleName;
+                    messages[slot] = message;
+                    sequences.set(slot, position + 1); // publish the slot to the flusher
+                    if (level == Level.ERROR) {
+                        LockSupport.unpark(flusherThread);
+                    }
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the ring is full
+                if (level == Level.DEBUG || closed) {
+                    droppedMessages.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(flusherThread);
+                Thread.yield();
+                position = tail.get();
+            } else {
+                // another producer took the slot
+                position = tail.get();
             }
-            logFileOutPutStream = new BufferedWriter(logFileWriter);
         }
-        Date timeStamp = new Date(System.currentTimeMillis());
-        Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        String logMessage = timeStamp + ": ERROR: " + sdf.format(cal.getTime())+" - " + i_moduleName + " " + i_Message + "\n";
+    }
+
+    private static void flushLoop() {
+        while (!closed) {
+            drain();
+            LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+        }
+    }
+
+    // Write every ready slot into the log file, called by the flusher thread or once it stopped
+    private static synchronized void drain() {
+        if (logFileOutPutStream == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(128);
         try {
-            logFileWriter.write(logMessage);
+            int slot = (int) (head & (RING_SIZE - 1));
+            while (sequences.get(slot) == head + 1) {
+                line.setLength(0);
+                formatLine(line, times[slot], levels[slot], moduleNames[slot], messages[slot]);
+                moduleNames[slot] = null;
+                messages[slot] = null;
+                sequences.set(slot, head + RING_SIZE); // free the slot for the next round
+                head++;
+                slot = (int) (head & (RING_SIZE - 1));
+                logFileOutPutStream.append(line);
+            }
+
+            long dropped = droppedMessages.getAndSet(0);
+            if (dropped > 0) {
+                line.setLength(0);
+                formatLine(line, System.currentTimeMillis(), Level.INFO, "Utilities",
+                        dropped + " debug messages were dropped, the log could not keep up");
+                logFileOutPutStream.append(line);
+            }
+            logFileOutPutStream.flush();
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
 
+    private static void formatLine(StringBuilder line, long time, Level level, String moduleName, String message) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        line.append(cachedTimestamp);
+        if (level != Level.INFO) {
+            line.append(' ').append(level.name()).append(':');
+        }
+        line.append(" - ").append(moduleName).append(' ').append(message).append('\n');
+    }
+
+    // Stop the flusher and write everything queued so far
     public static void closeLogFile(){
+        synchronized (Utilities.class) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        LockSupport.unpark(flusherThread);
         try {
-            logFileWriter.close();
-            logFileOutPutStream.close();
-
+            flusherThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+        try {
+            if (logFileOutPutStream != null) {
+                logFileOutPutStream.close();
+                logFileOutPutStream = null;
+            }
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
 
-}
\ No newline at end of file
+}
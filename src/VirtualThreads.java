@@ -0,0 +1,29 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the running JVM supports them (java 21 and above).
+ *
+ * The project is compiled for older JVMs too, so the virtual thread builder is looked up reflectively.
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return factory("probe") != null;
+    }
+
+    // A factory of virtual threads named prefix-0, prefix-1..., or null if virtual threads are not supported
+    static ThreadFactory factory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}